@@ -27,6 +27,7 @@ package org.jenkinsci.plugins.workflow.support.pickles.serialization;
 import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
 import org.jenkinsci.plugins.workflow.pickles.Pickle;
 import org.jenkinsci.plugins.workflow.pickles.PickleFactory;
+import org.jenkinsci.plugins.workflow.support.storage.StorageDurability;
 import hudson.ExtensionList;
 import org.jboss.marshalling.Marshaller;
 import org.jboss.marshalling.Marshalling;
@@ -43,8 +44,13 @@ import java.io.IOException;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
 
 /**
  * {@link ObjectOutputStream} compatible object graph serializer
@@ -55,6 +61,8 @@ import java.util.List;
  * @see RiverReader
  */
 public class RiverWriter implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(RiverWriter.class.getName());
+
     /**
      * File that we are writing to.
      */
@@ -66,15 +74,24 @@ public class RiverWriter implements Closeable {
      */
     private final FlowExecutionOwner owner;
 
+    private final StorageDurability durability;
+
+    /**
+     * Temporary file in the same directory which replaces {@link #file} in one atomic move on {@link #close},
+     * so that a crash while writing leaves the previous program state intact.
+     * Null for {@link StorageDurability#NONE}, where nothing is serialized at all.
+     */
+    private final @CheckForNull File tmp;
+
     /**
-     * Writes to {@link #file}.
+     * Writes to {@link #tmp}; null along with it.
      */
-    private final DataOutputStream dout;
+    private final @CheckForNull DataOutputStream dout;
 
     /**
-     * Handles object graph -> byte[] conversion
+     * Handles object graph -> byte[] conversion; null along with {@link #dout}.
      */
-    private final Marshaller marshaller;
+    private final @CheckForNull Marshaller marshaller;
 
     private final int ephemeralsBackptr;
 
@@ -87,13 +104,27 @@ public class RiverWriter implements Closeable {
 
     // TODO: rename to HibernatingObjectOutputStream?
     public RiverWriter(File f, FlowExecutionOwner _owner) throws IOException {
+        this(f, _owner, StorageDurability.forOwner(_owner));
+    }
+
+    public RiverWriter(File f, FlowExecutionOwner _owner, @Nonnull StorageDurability durability) throws IOException {
         final ExtensionList<PickleFactory> pickleFactories = PickleFactory.all();
         if (pickleFactories.isEmpty()) {
             throw new IllegalStateException("JENKINS-26137: Jenkins is shutting down");
         }
         file = f;
         owner = _owner;
-        dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        this.durability = durability;
+        if (durability == StorageDurability.NONE) {
+            // The build cannot be resumed anyway, so spare marshalling the program and running the pickle factories.
+            tmp = null;
+            dout = null;
+            marshaller = null;
+            ephemeralsBackptr = 0;
+            return;
+        }
+        tmp = File.createTempFile("atomic", "tmp", file.getAbsoluteFile().getParentFile());
+        dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE));
         dout.writeLong(HEADER);
         dout.writeShort(VERSION);
         ephemeralsBackptr = dout.size();
@@ -129,17 +160,32 @@ public class RiverWriter implements Closeable {
     }
 
     public void writeObject(Object o) throws IOException {
-        marshaller.writeObject(o);
+        if (marshaller != null) {
+            marshaller.writeObject(o);
+        }
     }
 
     /**
      * For writing various typed objects and primitives.
+     * For {@link StorageDurability#NONE} everything written is discarded.
      */
     public ObjectOutput getObjectOutput() {
-        return marshaller;
+        return marshaller != null ? marshaller : DISCARD;
     }
 
+    /**
+     * Completes the file and moves it into place.
+     * For {@link StorageDurability#MAXIMUM} it is synced to disk first; for {@link StorageDurability#PERFORMANCE} it is not,
+     * so a crash of the operating system can lose the latest program state, but never leaves a torn file.
+     */
     public void close() throws IOException {
+        if (marshaller == null || dout == null || tmp == null) {
+            // Do not leave stale program state which might be resumed instead.
+            if (file.exists() && !file.delete()) {
+                LOGGER.warning("could not delete " + file);
+            }
+            return;
+        }
         marshaller.finish();
         int ephemeralsOffset = dout.size();
 
@@ -150,16 +196,52 @@ public class RiverWriter implements Closeable {
         marshaller.finish();
         dout.close();
 
-        // back fill the offset to the ephemerals stream
-        RandomAccessFile raf = new RandomAccessFile(file, "rw");
         try {
-            raf.seek(ephemeralsBackptr);
-            raf.writeInt(ephemeralsOffset);
+            // back fill the offset to the ephemerals stream
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.seek(ephemeralsBackptr);
+                raf.writeInt(ephemeralsOffset);
+                if (durability == StorageDurability.MAXIMUM) {
+                    raf.getFD().sync();
+                }
+            } finally {
+                raf.close();
+            }
+            // Either replaces the file entirely or leaves it as it was.
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
         } finally {
-            raf.close();
+            if (tmp.exists() && !tmp.delete()) {
+                LOGGER.warning("could not delete " + tmp);
+            }
         }
     }
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Stands in for the marshaller when nothing is to be written.
+     */
+    private static final ObjectOutput DISCARD = new ObjectOutput() {
+        @Override public void writeObject(Object obj) {}
+        @Override public void write(int b) {}
+        @Override public void write(byte[] b) {}
+        @Override public void write(byte[] b, int off, int len) {}
+        @Override public void writeBoolean(boolean v) {}
+        @Override public void writeByte(int v) {}
+        @Override public void writeShort(int v) {}
+        @Override public void writeChar(int v) {}
+        @Override public void writeInt(int v) {}
+        @Override public void writeLong(long v) {}
+        @Override public void writeFloat(float v) {}
+        @Override public void writeDouble(double v) {}
+        @Override public void writeBytes(String s) {}
+        @Override public void writeChars(String s) {}
+        @Override public void writeUTF(String s) {}
+        @Override public void flush() {}
+        @Override public void close() {}
+    };
+
     /*constant*/ static final long HEADER = 7330745437582215633L;
     /*constant*/ static final int VERSION = 1;
 }
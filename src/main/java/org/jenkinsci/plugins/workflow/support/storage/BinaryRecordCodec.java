@@ -0,0 +1,572 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.reflection.ReflectionProvider;
+import com.thoughtworks.xstream.core.JVM;
+import com.thoughtworks.xstream.mapper.CannotResolveClassException;
+import hudson.model.Action;
+import hudson.util.RobustReflectionConverter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.CheckForNull;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+/**
+ * Compact binary record format.
+ *
+ * <p>
+ * The node id and parent ids are written directly.
+ * The node and each action are written as a class name followed by named, typed field values,
+ * provided every persistent field holds a string, a primitive, an enum constant or a list of strings,
+ * and the class has no custom XStream serialization.
+ * Anything else falls back to an embedded XStream XML fragment, so any type which can be stored today remains storable.
+ * As with XStream, fields missing from a record keep their default values and unknown fields are skipped.
+ *
+ * <p>
+ * A variant with its own id writes strings, including class and field names, as indices into a {@link StringTable}.
+ */
+public final class BinaryRecordCodec extends FlowNodeRecordCodec {
+
+    public static final BinaryRecordCodec INSTANCE = new BinaryRecordCodec(null);
+
+    /** If set, strings are written as indices into this table. */
+    private final @CheckForNull StringTable strings;
+
+    /**
+     * @param strings a table of the execution, for the dictionary variant of this format; or null
+     */
+    BinaryRecordCodec(@CheckForNull StringTable strings) {
+        this.strings = strings;
+    }
+
+    @Override public byte getId() {
+        return strings == null ? ID : DICTIONARY_ID;
+    }
+
+    @Override public byte[] encode(FlowNode node, List<Action> actions) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(VERSION);
+        writeStr(out, node.getId());
+        List<String> parentIds = parentIds(node);
+        writeVarInt(out, parentIds.size());
+        for (String parentId : parentIds) {
+            writeStr(out, parentId);
+        }
+        writeObject(out, node);
+        writeVarInt(out, actions.size());
+        for (Action a : actions) {
+            writeObject(out, a);
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    @Override public FlowNode decode(byte[] data, List<Action> actions) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported record version " + version);
+        }
+        String id = readStr(in);
+        int parentCount = readVarInt(in);
+        List<String> parentIds = new ArrayList<String>(parentCount);
+        for (int i = 0; i < parentCount; i++) {
+            parentIds.add(readStr(in));
+        }
+        Object node = readObject(in);
+        if (!(node instanceof FlowNode)) {
+            throw new IOException("expected a flow node in record for " + id + " but found " + node);
+        }
+        try {
+            SimpleXStreamFlowNodeStorage.FlowNode$parents.set(node, null);
+            SimpleXStreamFlowNodeStorage.FlowNode$parentIds.set(node, parentIds);
+        } catch (IllegalAccessException x) {
+            throw (IllegalAccessError) new IllegalAccessError("Failed to set parents").initCause(x);
+        }
+        int actionCount = readVarInt(in);
+        for (int i = 0; i < actionCount; i++) {
+            actions.add((Action) readObject(in));
+        }
+        return (FlowNode) node;
+    }
+
+    @Override public byte[] encodeAction(Action action) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(VERSION);
+        writeObject(out, action);
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    @Override public Action decodeAction(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported record version " + version);
+        }
+        Object o = readObject(in);
+        if (!(o instanceof Action)) {
+            throw new IOException("expected an action but found " + o);
+        }
+        return (Action) o;
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<String> parentIds(FlowNode node) {
+        try {
+            List<String> parentIds = (List<String>) SimpleXStreamFlowNodeStorage.FlowNode$parentIds.get(node);
+            if (parentIds != null) {
+                return parentIds;
+            }
+        } catch (IllegalAccessException x) {
+            throw (IllegalAccessError) new IllegalAccessError("Failed to get parents").initCause(x);
+        }
+        List<FlowNode> parents = node.getParents();
+        List<String> parentIds = new ArrayList<String>(parents.size());
+        for (FlowNode parent : parents) {
+            parentIds.add(parent.getId());
+        }
+        return parentIds;
+    }
+
+    private void writeObject(DataOutputStream out, Object o) throws IOException {
+        Field[] fields = fieldsOf(o.getClass());
+        if (fields != null) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(128);
+            DataOutputStream buf = new DataOutputStream(baos);
+            if (writeFields(buf, o, fields)) {
+                buf.flush();
+                out.writeByte(FIELDS);
+                baos.writeTo(out);
+                return;
+            }
+        }
+        out.writeByte(XML);
+        writeString(out, SimpleXStreamFlowNodeStorage.XSTREAM.toXML(o)); // too long to be worth sharing
+    }
+
+    /**
+     * @return false if some field value cannot be represented, in which case the buffer must be discarded
+     */
+    private boolean writeFields(DataOutput out, Object o, Field[] fields) throws IOException {
+        writeName(out, SimpleXStreamFlowNodeStorage.XSTREAM.getMapper().serializedClass(o.getClass()));
+        writeVarInt(out, fields.length);
+        for (Field f : fields) {
+            Object value;
+            try {
+                value = f.get(o);
+            } catch (IllegalAccessException x) {
+                return false;
+            }
+            writeName(out, f.getName());
+            if (!writeValue(out, f, value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean writeValue(DataOutput out, Field f, @CheckForNull Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeStr(out, (String) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            writeVarInt(out, zigZag((Integer) value));
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Character) {
+            out.writeByte(CHAR);
+            out.writeChar((Character) value);
+        } else if (value instanceof Enum && f.getType() == ((Enum<?>) value).getDeclaringClass()) {
+            out.writeByte(ENUM);
+            writeStr(out, ((Enum<?>) value).name());
+        } else if (value instanceof List && f.getType().isAssignableFrom(ArrayList.class)) {
+            List<?> list = (List<?>) value;
+            for (Object item : list) {
+                if (!(item instanceof String)) {
+                    return false;
+                }
+            }
+            out.writeByte(STRING_LIST);
+            writeVarInt(out, list.size());
+            for (Object item : list) {
+                writeStr(out, (String) item);
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private Object readObject(DataInput in) throws IOException {
+        byte kind = in.readByte();
+        switch (kind) {
+        case XML:
+            try {
+                return SimpleXStreamFlowNodeStorage.XSTREAM.fromXML(readString(in));
+            } catch (ConversionException x) {
+                throw new IOException(x);
+            }
+        case FIELDS:
+            return readFields(in);
+        default:
+            throw new IOException("unknown object kind " + kind);
+        }
+    }
+
+    private Object readFields(DataInput in) throws IOException {
+        String className = readName(in);
+        Class<?> type;
+        try {
+            type = SimpleXStreamFlowNodeStorage.XSTREAM.getMapper().realClass(className);
+        } catch (CannotResolveClassException x) {
+            throw new IOException("cannot load " + className, x);
+        }
+        Map<String,Field> fields = new HashMap<String,Field>();
+        for (Field f : persistentFields(type)) {
+            fields.put(f.getName(), f);
+        }
+        Object o = REFLECTION.newInstance(type);
+        int count = readVarInt(in);
+        for (int i = 0; i < count; i++) {
+            String name = readName(in);
+            Field f = fields.get(name);
+            Object value = readValue(in, f);
+            if (f == null) {
+                continue; // like RobustReflectionConverter, ignore fields which no longer exist
+            }
+            try {
+                f.set(o, value);
+            } catch (IllegalArgumentException x) {
+                throw new IOException("cannot set " + name + " of " + className + " to " + value, x);
+            } catch (IllegalAccessException x) {
+                throw new IOException(x);
+            }
+        }
+        return o;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Object readValue(DataInput in, @CheckForNull Field f) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case NULL:
+            return null;
+        case STRING:
+            return readStr(in);
+        case BOOLEAN:
+            return in.readBoolean();
+        case INT:
+            return unZigZag(readVarInt(in));
+        case LONG:
+            return in.readLong();
+        case DOUBLE:
+            return in.readDouble();
+        case FLOAT:
+            return in.readFloat();
+        case SHORT:
+            return in.readShort();
+        case BYTE:
+            return in.readByte();
+        case CHAR:
+            return in.readChar();
+        case ENUM:
+            String name = readStr(in);
+            if (f == null || !f.getType().isEnum()) {
+                return null;
+            }
+            try {
+                return Enum.valueOf((Class) f.getType(), name);
+            } catch (IllegalArgumentException x) {
+                throw new IOException("no constant " + name + " in " + f.getType(), x);
+            }
+        case STRING_LIST:
+            int size = readVarInt(in);
+            List<String> list = new ArrayList<String>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(readStr(in));
+            }
+            return list;
+        default:
+            throw new IOException("unknown value type " + type);
+        }
+    }
+
+    /**
+     * Persistent fields of a type we can write field by field.
+     * @return null if XStream must be used
+     */
+    private static @CheckForNull Field[] fieldsOf(Class<?> type) {
+        try {
+            return FIELDS_CACHE.get(type).fields;
+        } catch (ExecutionException x) {
+            throw new AssertionError(x);
+        }
+    }
+
+    private static List<Field> persistentFields(Class<?> type) {
+        List<Field> fields = new ArrayList<Field>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                int mod = f.getModifiers();
+                if (Modifier.isStatic(mod) || Modifier.isTransient(mod)) {
+                    continue;
+                }
+                if (f.equals(SimpleXStreamFlowNodeStorage.FlowNode$parents) || f.equals(SimpleXStreamFlowNodeStorage.FlowNode$parentIds)) {
+                    continue; // written in the record header
+                }
+                f.setAccessible(true);
+                fields.add(f);
+            }
+        }
+        return fields;
+    }
+
+    private static boolean hasCustomSerialization(Class<?> type) {
+        if (!FlowNode.class.isAssignableFrom(type)) { // FlowNode has its own converter, which delegates to reflection
+            Converter c = SimpleXStreamFlowNodeStorage.XSTREAM.getConverterLookup().lookupConverterForType(type);
+            if (!(c instanceof RobustReflectionConverter)) {
+                return true;
+            }
+        }
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Method m : c.getDeclaredMethods()) {
+                if ((m.getName().equals("readResolve") || m.getName().equals("writeReplace")) && m.getParameterTypes().length == 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static final class ClassInfo {
+        final @CheckForNull Field[] fields;
+        ClassInfo(@CheckForNull Field[] fields) {
+            this.fields = fields;
+        }
+    }
+
+    private static final LoadingCache<Class<?>,ClassInfo> FIELDS_CACHE = CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<Class<?>,ClassInfo>() {
+        @Override public ClassInfo load(Class<?> type) throws Exception {
+            if (type.isAnonymousClass() || type.isLocalClass() || hasCustomSerialization(type)) {
+                return new ClassInfo(null);
+            }
+            List<Field> fields = persistentFields(type);
+            for (Field f : fields) {
+                if (f.isSynthetic()) {
+                    return new ClassInfo(null); // e.g. reference to an outer instance
+                }
+                for (Field other : fields) {
+                    if (other != f && other.getName().equals(f.getName())) {
+                        return new ClassInfo(null); // shadowed field
+                    }
+                }
+            }
+            return new ClassInfo(fields.toArray(new Field[fields.size()]));
+        }
+    });
+
+    /**
+     * Writes a string, through the table if there is one.
+     * Strings too long to be worth sharing are written inline.
+     */
+    private void writeStr(DataOutput out, @CheckForNull String s) throws IOException {
+        if (strings == null) {
+            writeString(out, s);
+        } else if (s == null) {
+            writeVarInt(out, 0);
+        } else if (s.length() > MAX_SHARED_LENGTH) {
+            writeVarInt(out, 1);
+            writeString(out, s);
+        } else {
+            writeVarInt(out, strings.index(s) + 2);
+        }
+    }
+
+    private @CheckForNull String readStr(DataInput in) throws IOException {
+        if (strings == null) {
+            return readString(in);
+        }
+        int v = readVarInt(in);
+        switch (v) {
+        case 0:
+            return null;
+        case 1:
+            return readString(in);
+        default:
+            return strings.get(v - 2);
+        }
+    }
+
+    /**
+     * Writes a class or field name, which is never null.
+     */
+    private void writeName(DataOutput out, String name) throws IOException {
+        if (strings == null) {
+            out.writeUTF(name);
+        } else {
+            writeStr(out, name);
+        }
+    }
+
+    private String readName(DataInput in) throws IOException {
+        if (strings == null) {
+            return in.readUTF();
+        }
+        String name = readStr(in);
+        if (name == null) {
+            throw new IOException("missing name");
+        }
+        return name;
+    }
+
+    static void writeString(DataOutput out, @CheckForNull String s) throws IOException {
+        if (s == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = s.getBytes("UTF-8");
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    static @CheckForNull String readString(DataInput in) throws IOException {
+        int length = readVarInt(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    static void writeVarInt(DataOutput out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    static int readVarInt(ByteBuffer in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.get() & 0xFF;
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private static int zigZag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    private static int unZigZag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static final ReflectionProvider REFLECTION = JVM.newReflectionProvider();
+
+    /*constant*/ static final int VERSION = 1;
+
+    static final byte ID = 1;
+    /** Id of the variant using a {@link StringTable}, which cannot be decoded without the table of its execution. */
+    static final byte DICTIONARY_ID = 2;
+    /** Longest string added to a {@link StringTable}. */
+    private static final int MAX_SHARED_LENGTH = 256;
+
+    private static final byte XML = 0;
+    private static final byte FIELDS = 1;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte BOOLEAN = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte FLOAT = 6;
+    private static final byte SHORT = 7;
+    private static final byte BYTE = 8;
+    private static final byte CHAR = 9;
+    private static final byte ENUM = 10;
+    private static final byte STRING_LIST = 11;
+
+}
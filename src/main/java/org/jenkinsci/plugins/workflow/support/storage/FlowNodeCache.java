@@ -0,0 +1,496 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.Weigher;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+/**
+ * Cache of loaded {@link FlowNode}s shared by all {@link FlowNodeStorage}s, with a global weight limit
+ * and least-recently-used eviction.
+ *
+ * <p>
+ * Unlike soft references, which the garbage collector clears for all builds at once under heap pressure,
+ * this evicts gradually and predictably. Each node weighs one plus its number of parents.
+ * The limit is set by the {@code org.jenkinsci.plugins.workflow.support.storage.FlowNodeCache.maximumWeight} system property,
+ * and entries idle for {@code expireAfterAccessMinutes} may also be dropped.
+ * The counters are meant to help size it.
+ * Each storage holds a {@link Scope}; the entries of a build are dropped once it completes or is deleted,
+ * so that the cache does not keep finished builds reachable until they happen to be evicted.
+ * Ids which turned out not to be stored are also remembered, up to {@code absentSize} of them,
+ * so that repeated probes for nonexistent nodes return null without touching the disk.
+ *
+ * <p>
+ * Optionally, evicted nodes are kept serialized in an off-heap second level with a byte budget
+ * set by {@code offHeapBytes}, so that reloading them needs neither file I/O nor XML parsing.
+ * Only nodes of storages which consult it through {@link #getEvicted} are kept there,
+ * since serializing the others on eviction would only waste time and displace useful records.
+ */
+public final class FlowNodeCache {
+
+    private static final Logger LOGGER = Logger.getLogger(FlowNodeCache.class.getName());
+
+    public static final long MAXIMUM_WEIGHT = Long.getLong(FlowNodeCache.class.getName() + ".maximumWeight", 100000);
+
+    public static final long EXPIRE_AFTER_ACCESS_MINUTES = Long.getLong(FlowNodeCache.class.getName() + ".expireAfterAccessMinutes", 0);
+
+    /**
+     * Budget in bytes of direct memory for serialized copies of evicted nodes; 0 to disable.
+     */
+    public static final long OFF_HEAP_BYTES = Long.getLong(FlowNodeCache.class.getName() + ".offHeapBytes", 0);
+
+    /**
+     * Number of ids remembered as not stored, so that repeated lookups of them cost no I/O.
+     */
+    public static final long ABSENT_SIZE = Long.getLong(FlowNodeCache.class.getName() + ".absentSize", 10000);
+
+    private static final FlowNodeCache INSTANCE = new FlowNodeCache(MAXIMUM_WEIGHT, EXPIRE_AFTER_ACCESS_MINUTES, OFF_HEAP_BYTES);
+
+    public static @Nonnull FlowNodeCache get() {
+        return INSTANCE;
+    }
+
+    private final Cache<Key,FlowNode> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadTime = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final @CheckForNull OffHeapRecordCache secondLevel;
+    /** Ids looked up but not found; see {@link #absent}. */
+    private final Cache<Key,Boolean> absent = CacheBuilder.newBuilder().maximumSize(ABSENT_SIZE).build();
+    private final AtomicLong absentHits = new AtomicLong();
+    /** All live scopes, so that those of a build can be found when it completes or is deleted. */
+    private final Set<Scope> scopes = Collections.newSetFromMap(CacheBuilder.newBuilder().weakKeys().<Scope,Boolean>build().asMap());
+
+    FlowNodeCache(long maximumWeight, long expireAfterAccessMinutes, long offHeapBytes) {
+        secondLevel = offHeapBytes > 0 ? new OffHeapRecordCache(offHeapBytes, OffHeapRecordCache.DEFAULT_SLAB_SIZE) : null;
+        CacheBuilder<Object,Object> builder = CacheBuilder.newBuilder().maximumWeight(maximumWeight);
+        if (expireAfterAccessMinutes > 0) {
+            builder.expireAfterAccess(expireAfterAccessMinutes, TimeUnit.MINUTES);
+        }
+        cache = builder.weigher(new Weigher<Key,FlowNode>() {
+            @Override public int weigh(Key key, FlowNode node) {
+                return 1 + parentCount(node);
+            }
+        }).removalListener(new RemovalListener<Key,FlowNode>() {
+            @Override public void onRemoval(RemovalNotification<Key,FlowNode> notification) {
+                Key key = notification.getKey();
+                if (key != null && notification.getCause() != RemovalCause.REPLACED) {
+                    key.scope.forget(key);
+                }
+                if (notification.wasEvicted()) {
+                    evictions.incrementAndGet();
+                    if (secondLevel != null && key != null && key.scope.offHeap) {
+                        FlowNode node = notification.getValue();
+                        if (node != null) {
+                            try {
+                                secondLevel.put(key.scope, node.getId(), BinaryRecordCodec.INSTANCE.encodeNode(node));
+                            } catch (IOException x) {
+                                LOGGER.log(Level.FINE, "could not serialize " + node.getId(), x);
+                            }
+                        }
+                    }
+                }
+            }
+        }).build();
+    }
+
+    /**
+     * Does not call {@link FlowNode#getParents}, which could reenter the cache.
+     */
+    private static int parentCount(FlowNode node) {
+        try {
+            List<?> parentIds = (List<?>) SimpleXStreamFlowNodeStorage.FlowNode$parentIds.get(node);
+            return parentIds != null ? parentIds.size() : 0;
+        } catch (IllegalAccessException x) {
+            return 0;
+        }
+    }
+
+    /**
+     * Creates the scope of a new storage instance which does not use {@link #getEvicted}.
+     * @param dir where the storage keeps the nodes of one build, if it does, so that they can be dropped along with the build
+     */
+    @Nonnull Scope scope(@CheckForNull File dir) {
+        return scope(dir, false);
+    }
+
+    /**
+     * Creates the scope of a new storage instance.
+     * @param dir where the storage keeps the nodes of one build, if it does, so that they can be dropped along with the build
+     * @param offHeap whether the storage looks up evicted nodes with {@link #getEvicted}, so they should be kept off-heap
+     */
+    @Nonnull Scope scope(@CheckForNull File dir, boolean offHeap) {
+        Scope scope = new Scope(dir, offHeap);
+        scopes.add(scope);
+        return scope;
+    }
+
+    /**
+     * Looks up a node, counting a hit or a miss.
+     * Allocates nothing for numeric ids.
+     * @param scope that of the storage holding the node
+     */
+    @CheckForNull FlowNode get(@Nonnull Scope scope, @Nonnull String id) {
+        Key key = scope.existing(id);
+        FlowNode n = key != null ? cache.getIfPresent(key) : null;
+        (n != null ? hits : misses).incrementAndGet();
+        return n;
+    }
+
+    /**
+     * Looks for a serialized copy of an evicted node in the off-heap cache, if enabled.
+     * Only finds nodes of scopes created with {@code offHeap}.
+     * The caller must attach the node to its execution and then pass it to {@link #loaded}.
+     * @return a freshly deserialized node, or null
+     */
+    @CheckForNull FlowNode getEvicted(@Nonnull Scope scope, @Nonnull String id) {
+        if (secondLevel == null) {
+            return null;
+        }
+        byte[] record = secondLevel.get(scope, id);
+        if (record == null) {
+            return null;
+        }
+        try {
+            return BinaryRecordCodec.INSTANCE.decodeNode(record);
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, "could not deserialize " + id, x);
+            return null;
+        }
+    }
+
+    void put(@Nonnull Scope scope, @Nonnull FlowNode n) {
+        Key key = scope.key(n.getId());
+        scope.generation.incrementAndGet(); // before clearing absent ids; see absent
+        absent.invalidate(key);
+        cache.put(key, n);
+    }
+
+    /**
+     * Reads the stamp to pass to {@link #absent}, which must be taken before looking for the node.
+     */
+    long generation(@Nonnull Scope scope) {
+        return scope.generation.get();
+    }
+
+    /**
+     * Remembers that a storage found no node with the given id, until it stores one via {@link #put}.
+     * A node may have been stored between the lookup and this call, in which case the stamp has changed
+     * and the entry is dropped again: either here, or by that {@link #put} if it clears absent ids afterwards.
+     * Otherwise the id could stay hidden although the node exists.
+     * @param generation as read by {@link #generation} before the lookup
+     */
+    void absent(@Nonnull Scope scope, @Nonnull String id, long generation) {
+        Key key = new Key(scope, id);
+        absent.put(key, Boolean.TRUE);
+        if (scope.generation.get() != generation) {
+            absent.invalidate(key);
+        }
+    }
+
+    /**
+     * Checks whether a storage recently found no node with the given id, counting a hit if so.
+     */
+    boolean isAbsent(@Nonnull Scope scope, @Nonnull String id) {
+        if (absent.getIfPresent(new Key(scope, id)) == null) {
+            return false;
+        }
+        absentHits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Caches a freshly loaded node unless another thread got there first, so all callers agree on one instance.
+     * @param loadNanos how long the load took
+     * @return the cached node
+     */
+    @Nonnull FlowNode loaded(@Nonnull Scope scope, @Nonnull FlowNode n, long loadNanos) {
+        loads.incrementAndGet();
+        loadTime.addAndGet(loadNanos);
+        Key key = scope.key(n.getId());
+        absent.invalidate(key);
+        FlowNode existing = cache.asMap().putIfAbsent(key, n);
+        return existing != null ? existing : n;
+    }
+
+    /**
+     * Drops all nodes and absent ids of one storage.
+     */
+    void invalidate(@Nonnull Scope scope) {
+        cache.invalidateAll(scope.keys());
+        for (Iterator<Key> it = absent.asMap().keySet().iterator(); it.hasNext();) {
+            if (it.next().scope == scope) {
+                it.remove();
+            }
+        }
+        if (secondLevel != null) {
+            secondLevel.invalidate(scope);
+        }
+    }
+
+    /**
+     * Drops the entries of all storages keeping nodes inside a given directory.
+     * @return the number of storages affected
+     */
+    int invalidate(@Nonnull File dir) {
+        String prefix = dir.getAbsolutePath() + File.separator;
+        List<Scope> matching = new ArrayList<Scope>();
+        for (Scope scope : scopes) {
+            if (scope.dir != null && (scope.dir.getAbsolutePath() + File.separator).startsWith(prefix)) {
+                matching.add(scope);
+            }
+        }
+        for (Scope scope : matching) {
+            invalidate(scope);
+        }
+        return matching.size();
+    }
+
+    /**
+     * Forgets all cached nodes and absent ids, so that benchmarks can measure loads from storage.
+     */
+    void invalidateAll() {
+        cache.invalidateAll();
+        absent.invalidateAll();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 1.0 : (double) h / total;
+    }
+
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    /**
+     * Total time spent loading nodes after a miss, in nanoseconds.
+     */
+    public long getTotalLoadTime() {
+        return loadTime.get();
+    }
+
+    public double getAverageLoadPenalty() {
+        long l = loads.get();
+        return l == 0 ? 0.0 : (double) loadTime.get() / l;
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getSize() {
+        return cache.size();
+    }
+
+    public long getMaximumWeight() {
+        return MAXIMUM_WEIGHT;
+    }
+
+    /**
+     * Number of lookups answered by the record of ids known not to be stored.
+     */
+    public long getAbsentHitCount() {
+        return absentHits.get();
+    }
+
+    public long getOffHeapHitCount() {
+        return secondLevel != null ? secondLevel.getHitCount() : 0;
+    }
+
+    public long getOffHeapMissCount() {
+        return secondLevel != null ? secondLevel.getMissCount() : 0;
+    }
+
+    public long getOffHeapSize() {
+        return secondLevel != null ? secondLevel.getSize() : 0;
+    }
+
+    /**
+     * Direct memory allocated so far by the off-heap cache, in bytes.
+     */
+    public long getOffHeapAllocatedBytes() {
+        return secondLevel != null ? secondLevel.getAllocatedBytes() : 0;
+    }
+
+    @Override public String toString() {
+        return "FlowNodeCache[size=" + getSize() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", loads=" + getLoadCount()
+                + ", averageLoadPenalty=" + getAverageLoadPenalty() + "ns, evictions=" + getEvictionCount() + ", absentHits=" + getAbsentHitCount()
+                + (secondLevel != null ? ", offHeapSize=" + getOffHeapSize() + ", offHeapHits=" + getOffHeapHitCount() : "") + "]";
+    }
+
+    /**
+     * Entries of one storage instance, which holds on to it.
+     * Keys refer to the scope rather than to the storage, and are canonical:
+     * those of numeric ids are kept in an array indexed like {@link NodeIdIndex}, so a lookup needs no new key.
+     */
+    static final class Scope {
+        private final @CheckForNull File dir;
+        private final boolean offHeap;
+        /** Incremented by every {@link FlowNodeCache#put}, so that {@link FlowNodeCache#absent} can tell whether it raced with one. */
+        final AtomicLong generation = new AtomicLong();
+        private Key[] dense = new Key[64];
+        private final Map<String,Key> other = new HashMap<String,Key>();
+
+        private Scope(@CheckForNull File dir, boolean offHeap) {
+            this.dir = dir;
+            this.offHeap = offHeap;
+        }
+
+        synchronized @CheckForNull Key existing(String id) {
+            int i = NodeIdIndex.parse(id);
+            if (i >= 0 && i < NodeIdIndex.MAX_DENSE) {
+                return i < dense.length ? dense[i] : null;
+            }
+            return other.get(id);
+        }
+
+        synchronized @Nonnull Key key(String id) {
+            Key key = existing(id);
+            if (key == null) {
+                key = new Key(this, id);
+                int i = key.number;
+                if (i >= 0 && i < NodeIdIndex.MAX_DENSE) {
+                    if (i >= dense.length) {
+                        Key[] grown = new Key[Math.min(NodeIdIndex.MAX_DENSE, Math.max(i + 1, dense.length * 2))];
+                        System.arraycopy(dense, 0, grown, 0, dense.length);
+                        dense = grown;
+                    }
+                    dense[i] = key;
+                } else {
+                    other.put(id, key);
+                }
+            }
+            return key;
+        }
+
+        /**
+         * Called once the entry of a key has been removed, unless a later key took its place meanwhile.
+         */
+        synchronized void forget(Key key) {
+            int i = key.number;
+            if (i >= 0 && i < NodeIdIndex.MAX_DENSE) {
+                if (i < dense.length && dense[i] == key) {
+                    dense[i] = null;
+                }
+            } else if (other.get(key.id) == key) {
+                other.remove(key.id);
+            }
+        }
+
+        synchronized List<Key> keys() {
+            List<Key> keys = new ArrayList<Key>(other.values());
+            for (Key key : dense) {
+                if (key != null) {
+                    keys.add(key);
+                }
+            }
+            return keys;
+        }
+
+        @Override public String toString() {
+            return "FlowNodeCache.Scope[" + dir + "]";
+        }
+    }
+
+    /**
+     * A node of a particular storage.
+     * Numeric ids are compared as numbers, per {@link NodeIdIndex#parse}.
+     */
+    private static final class Key {
+        final Scope scope;
+        final int number;
+        final @CheckForNull String id;
+        private final int hash;
+
+        Key(Scope scope, String id) {
+            this.scope = scope;
+            this.number = NodeIdIndex.parse(id);
+            this.id = number >= 0 && number < NodeIdIndex.MAX_DENSE ? null : id;
+            this.hash = System.identityHashCode(scope) * 31 + (this.id == null ? number : id.hashCode());
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return scope == k.scope && number == k.number && (id == null ? k.id == null : id.equals(k.id));
+        }
+
+        @Override public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Drops cached nodes of builds which have completed or been deleted.
+     * Views of a completed build load its nodes again as needed.
+     */
+    @Extension public static final class RunCleanup extends RunListener<Run<?,?>> {
+        @Override public void onCompleted(Run<?,?> run, @Nonnull TaskListener listener) {
+            get().invalidate(run.getRootDir());
+        }
+        @Override public void onDeleted(Run<?,?> run) {
+            get().invalidate(run.getRootDir());
+        }
+    }
+
+}
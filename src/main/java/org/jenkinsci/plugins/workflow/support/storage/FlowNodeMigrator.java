@@ -0,0 +1,331 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.util.DaemonThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import jenkins.util.NamingThreadFactory;
+
+/**
+ * Converts the flow node directories of many builds from per-node files to packs using {@link FlowNodePacker}.
+ *
+ * <p>
+ * Directories are processed in parallel by a bounded {@link ForkJoinPool}.
+ * Each directory is verified before its node files are deleted, and a directory left with no node files counts as done,
+ * so an interrupted migration resumes simply by running it again.
+ * Node files which cannot be read completely, typically because a plugin contributing actions is not on the classpath,
+ * are left in place and counted as kept.
+ * Builds which have not completed, as told by their {@code program.dat}, are skipped, whether offline or not:
+ * a build paused in {@code input} or a long {@code sleep} writes nothing for a long time.
+ * May be run offline, using {@link #main}, or in the background of a running Jenkins,
+ * in which case a quiet period also keeps it away from builds just writing their last nodes.
+ */
+public final class FlowNodeMigrator {
+
+    private static final Logger LOGGER = Logger.getLogger(FlowNodeMigrator.class.getName());
+
+    private final int parallelism;
+    private final long throttle;
+    private final long quietPeriod;
+    private final boolean copyOnly;
+
+    private final AtomicInteger migrated = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong nodes = new AtomicLong();
+    private final AtomicLong kept = new AtomicLong();
+    private final AtomicLong sourceActions = new AtomicLong();
+    private final AtomicLong packedActions = new AtomicLong();
+
+    /**
+     * @param parallelism maximum number of directories migrated at once
+     * @param throttle milliseconds each worker pauses after a directory, to limit I/O load; 0 for none
+     * @param quietPeriod milliseconds since the last modification of a directory of a completed build before it is migrated; 0 when offline
+     */
+    public FlowNodeMigrator(int parallelism, long throttle, long quietPeriod) {
+        this(parallelism, throttle, quietPeriod, false);
+    }
+
+    /**
+     * @param copyOnly true to write and verify packs but keep all node files, for a trial run
+     * @see #FlowNodeMigrator(int, long, long)
+     */
+    public FlowNodeMigrator(int parallelism, long throttle, long quietPeriod, boolean copyOnly) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+        this.throttle = throttle;
+        this.quietPeriod = quietPeriod;
+        this.copyOnly = copyOnly;
+    }
+
+    /**
+     * Finds the flow node directories of builds, {@code builds/<number>/workflow}, anywhere below a root such as {@code $JENKINS_HOME/jobs},
+     * including jobs in folders. Builds kept outside of the job directories by a custom {@code buildsDir} need their own root.
+     */
+    public static @Nonnull List<File> find(@Nonnull File root) {
+        List<File> dirs = new ArrayList<File>();
+        find(root, dirs);
+        return dirs;
+    }
+
+    private static void find(File dir, List<File> dirs) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        boolean builds = dir.getName().equals("builds");
+        for (File child : children) {
+            if (!child.isDirectory() || Files.isSymbolicLink(child.toPath())) { // such as builds/lastSuccessfulBuild
+                continue;
+            }
+            if (builds && isNumber(child.getName())) {
+                File workflow = new File(child, "workflow");
+                if (workflow.isDirectory()) {
+                    dirs.add(workflow);
+                }
+            } else { // not into builds, whose archived artifacts can be large
+                find(child, dirs);
+            }
+        }
+    }
+
+    private static boolean isNumber(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) < '0' || name.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the build owning a flow node directory may still be running:
+     * Pipeline keeps program state in the build directory until the build completes.
+     */
+    private static boolean isRunning(File dir) {
+        return new File(dir.getParentFile(), PROGRAM_FILE_NAME).exists();
+    }
+
+    /**
+     * Migrates the given directories, blocking until all are done.
+     */
+    public void migrate(@Nonnull List<File> dirs) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new Task(dirs));
+        } finally {
+            pool.shutdown();
+        }
+        LOGGER.log(Level.INFO, "{0}", this);
+    }
+
+    /**
+     * Migrates everything below a root on a background thread.
+     */
+    public @Nonnull Future<?> migrateInBackground(@Nonnull final File root) {
+        ExecutorService executor = Executors.newSingleThreadExecutor(new NamingThreadFactory(new DaemonThreadFactory(), "FlowNodeMigrator"));
+        try {
+            return executor.submit(new Runnable() {
+                @Override public void run() {
+                    migrate(find(root));
+                }
+            });
+        } finally {
+            executor.shutdown(); // lets the thread exit once done
+        }
+    }
+
+    private void migrate(File dir) {
+        if (FlowNodePacker.nodeFiles(dir).isEmpty() || (copyOnly && new File(dir, PackedFlowNodeStorage.FILE_NAME).isFile())) {
+            skipped.incrementAndGet(); // nothing left to do, possibly by an earlier run
+            return;
+        }
+        if (isRunning(dir) || quietPeriod > 0 && System.currentTimeMillis() - dir.lastModified() < quietPeriod) {
+            skipped.incrementAndGet(); // possibly still running, or just completed and writing its last nodes
+            return;
+        }
+        try {
+            FlowNodePacker.Result result = FlowNodePacker.pack(dir, !copyOnly);
+            nodes.addAndGet(result.getPackedCount());
+            kept.addAndGet(result.getKeptCount());
+            sourceActions.addAndGet(result.getSourceActionCount());
+            packedActions.addAndGet(result.getPackedActionCount());
+            if (result.getKeptCount() > 0) {
+                LOGGER.log(Level.WARNING, "{0}", result);
+            }
+            migrated.incrementAndGet();
+        } catch (IOException x) {
+            failed.incrementAndGet();
+            LOGGER.log(Level.WARNING, "failed to migrate " + dir, x);
+        } catch (RuntimeException x) {
+            failed.incrementAndGet();
+            LOGGER.log(Level.WARNING, "failed to migrate " + dir, x);
+        }
+        if (throttle > 0) {
+            try {
+                Thread.sleep(throttle);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Splits a list of directories until each part is one directory.
+     */
+    private final class Task extends RecursiveAction {
+        private final List<File> dirs;
+        Task(List<File> dirs) {
+            this.dirs = dirs;
+        }
+        @Override protected void compute() {
+            if (dirs.size() == 1) {
+                if (!Thread.currentThread().isInterrupted()) {
+                    migrate(dirs.get(0));
+                }
+            } else if (dirs.size() > 1) {
+                int middle = dirs.size() / 2;
+                invokeAll(new Task(dirs.subList(0, middle)), new Task(dirs.subList(middle, dirs.size())));
+            }
+        }
+    }
+
+    public int getMigratedCount() {
+        return migrated.get();
+    }
+
+    public int getSkippedCount() {
+        return skipped.get();
+    }
+
+    public int getFailedCount() {
+        return failed.get();
+    }
+
+    public long getNodeCount() {
+        return nodes.get();
+    }
+
+    /**
+     * Number of node files left unpacked since they could not be read completely.
+     */
+    public long getKeptCount() {
+        return kept.get();
+    }
+
+    /**
+     * Number of actions read from the node files which were packed.
+     */
+    public long getSourceActionCount() {
+        return sourceActions.get();
+    }
+
+    /**
+     * Number of actions read back from the packs; equal to {@link #getSourceActionCount} unless something was lost.
+     */
+    public long getPackedActionCount() {
+        return packedActions.get();
+    }
+
+    @Override public String toString() {
+        return (copyOnly ? "copied " : "migrated ") + migrated + " flows with " + nodes + " nodes and " + sourceActions + " actions (" + packedActions + " read back); "
+                + "kept " + kept + " unreadable node files; skipped " + skipped + "; failed " + failed;
+    }
+
+    /**
+     * Name of the program state of a build, in its directory.
+     */
+    static final String PROGRAM_FILE_NAME = "program.dat";
+
+    /**
+     * Classes which node files of any Pipeline build refer to.
+     * If these cannot be loaded, the offline classpath is clearly not that of Jenkins with the Pipeline plugins.
+     */
+    private static final String[] REQUIRED_CLASSES = {
+        "jenkins.model.Jenkins",
+        "org.jenkinsci.plugins.workflow.graph.FlowNode",
+        "org.jenkinsci.plugins.workflow.cps.nodes.StepAtomNode",
+        "org.jenkinsci.plugins.workflow.actions.LogAction",
+    };
+
+    /**
+     * Offline entry point.
+     * Usage: {@code FlowNodeMigrator [--copy-only] JENKINS_HOME/jobs [parallelism [throttle-ms]]}
+     *
+     * <p>
+     * Must be run with the classes of Jenkins and all installed plugins on the classpath, say {@code WEB-INF/lib/*} and the exploded plugins,
+     * since nodes are deserialized and re-encoded; node files referring to missing classes are kept, so a partial classpath leaves most of them behind.
+     * Refuses to run if not even the Pipeline classes can be loaded.
+     * With {@code --copy-only}, packs are written and verified next to the node files, which are all kept.
+     */
+    public static void main(String[] args) {
+        boolean copyOnly = args.length > 0 && args[0].equals("--copy-only");
+        if (copyOnly) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: FlowNodeMigrator [--copy-only] <jobs-dir> [parallelism [throttle-ms]]");
+            System.exit(2);
+        }
+        for (String name : REQUIRED_CLASSES) {
+            try {
+                Class.forName(name, false, FlowNodeMigrator.class.getClassLoader());
+            } catch (ClassNotFoundException x) {
+                System.err.println("Cannot load " + name + "; run with the classes of Jenkins and all its plugins on the classpath");
+                System.exit(2);
+            } catch (LinkageError x) {
+                System.err.println("Cannot load " + name + " (" + x + "); run with the classes of Jenkins and all its plugins on the classpath");
+                System.exit(2);
+            }
+        }
+        int parallelism = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        long throttle = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        FlowNodeMigrator migrator = new FlowNodeMigrator(parallelism, throttle, 0, copyOnly);
+        migrator.migrate(find(new File(args[0])));
+        System.out.println(migrator);
+        System.exit(migrator.getFailedCount() == 0 && migrator.getSourceActionCount() == migrator.getPackedActionCount() ? 0 : 1);
+    }
+
+}
@@ -0,0 +1,394 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import com.google.common.io.Files;
+import com.thoughtworks.xstream.XStreamException;
+import com.thoughtworks.xstream.converters.DataHolder;
+import com.thoughtworks.xstream.io.xml.XppDriver;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Action;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.RobustReflectionConverter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.util.NamingThreadFactory;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.support.storage.SimpleXStreamFlowNodeStorage.Tag;
+
+/**
+ * Compacts the per-node files written by {@link SimpleXStreamFlowNodeStorage} for a completed flow
+ * into a single {@link PackedFlowNodeStorage#FILE_NAME}, which {@link SimpleXStreamFlowNodeStorage} then reads from.
+ */
+public final class FlowNodePacker {
+
+    private static final Logger LOGGER = Logger.getLogger(FlowNodePacker.class.getName());
+
+    /**
+     * Whether to pack the flow nodes of every Pipeline build once it completes.
+     */
+    public static boolean PACK_ON_COMPLETION = Boolean.getBoolean(FlowNodePacker.class.getName() + ".packOnCompletion");
+
+    private FlowNodePacker() {}
+
+    /**
+     * Packs all node files in a storage directory, merging them with any existing pack, and deletes them.
+     * @param dir a directory as passed to {@link SimpleXStreamFlowNodeStorage}
+     * @return the number of node files packed
+     * @see #pack(File, boolean)
+     */
+    public static int pack(@Nonnull File dir) throws IOException {
+        return pack(dir, true).getPackedCount();
+    }
+
+    /**
+     * Packs node files in a storage directory, merging them with any existing pack.
+     * A node file is only packed if it could be read completely; robust XStream silently skips what it cannot deserialize,
+     * such as actions from an uninstalled plugin, so such files are left in place, where they keep precedence over the pack.
+     * The new pack is checked against its record checksums, and each packed node is read back and compared with its source,
+     * before anything is deleted.
+     * Node files are then moved aside and deleted only if their content is still what was packed.
+     * An interrupted run leaves the directory readable, so it is safe to call again,
+     * for example after actions were added to a packed build.
+     * @param dir a directory as passed to {@link SimpleXStreamFlowNodeStorage}
+     * @param deleteSources false to write and verify the pack but keep all node files
+     */
+    public static @Nonnull Result pack(@Nonnull File dir, boolean deleteSources) throws IOException {
+        restoreMovedAside(dir);
+        Result result = new Result(dir);
+        Map<String,File> files = nodeFiles(dir);
+        if (files.isEmpty()) {
+            return result;
+        }
+        File pack = new File(dir, PackedFlowNodeStorage.FILE_NAME);
+        File tmp = new File(dir, PackedFlowNodeStorage.FILE_NAME + ".tmp");
+        List<Source> sources = new ArrayList<Source>();
+        PackedFlowNodeStorage existing = pack.isFile() ? new PackedFlowNodeStorage(null, pack) : null;
+        try {
+            Set<String> ids = new LinkedHashSet<String>(files.keySet());
+            if (existing != null) {
+                ids.addAll(existing.getIds());
+            }
+            Set<String> written = new LinkedHashSet<String>();
+            PackedFlowNodeStorage.Writer writer = new PackedFlowNodeStorage.Writer(tmp, BinaryRecordCodec.INSTANCE);
+            try {
+                for (String id : ids) {
+                    File f = files.get(id);
+                    if (f != null) {
+                        Source source = read(f);
+                        if (source != null && add(writer, source.node, source.actions, f)) {
+                            sources.add(source);
+                            written.add(id);
+                            continue;
+                        }
+                        result.kept++;
+                    }
+                    if (existing != null && existing.contains(id)) { // unchanged, or superseded by a file which could not be packed
+                        FlowNode n = existing.read(id);
+                        assert n != null;
+                        if (!add(writer, n, existing.loadActions(n), pack)) {
+                            throw new IOException("could not carry node " + id + " over from " + pack);
+                        }
+                        written.add(id);
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+
+            PackedFlowNodeStorage check = new PackedFlowNodeStorage(null, tmp);
+            try {
+                if (check.size() != written.size()) {
+                    throw new IOException("expected " + written.size() + " nodes in " + tmp + " but found " + check.size());
+                }
+                for (String id : written) {
+                    if (!check.contains(id)) {
+                        throw new IOException("node " + id + " is missing from " + tmp);
+                    }
+                }
+                check.verify();
+                for (Source source : sources) {
+                    String id = source.node.getId();
+                    FlowNode n = check.read(id);
+                    if (n == null || n.getClass() != source.node.getClass()) {
+                        throw new IOException("node " + id + " did not survive packing into " + tmp);
+                    }
+                    List<Action> actions = check.loadActions(n);
+                    if (!classesOf(actions).equals(classesOf(source.actions))) {
+                        throw new IOException("actions " + classesOf(source.actions) + " of node " + id + " came back from " + tmp + " as " + classesOf(actions));
+                    }
+                    result.sourceActions += source.actions.size();
+                    result.packedActions += actions.size();
+                }
+            } finally {
+                check.close();
+            }
+        } finally {
+            if (existing != null) {
+                existing.close(); // otherwise Windows refuses to replace it
+            }
+        }
+        try { // either replaces the pack entirely or leaves it as it was, along with the node files
+            java.nio.file.Files.move(tmp.toPath(), pack.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException x) {
+            if (!tmp.delete()) {
+                LOGGER.log(Level.WARNING, "could not delete {0}", tmp);
+            }
+            throw x;
+        }
+        result.packed = sources.size();
+        if (deleteSources) {
+            for (Source source : sources) {
+                delete(source);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads a node file if that loses nothing.
+     * @return null if the file could not be read completely
+     */
+    private static @CheckForNull Source read(File f) throws IOException {
+        byte[] content = Files.toByteArray(f);
+        DataHolder holder = SimpleXStreamFlowNodeStorage.XSTREAM.newDataHolder();
+        Object o;
+        try {
+            o = SimpleXStreamFlowNodeStorage.XSTREAM.unmarshal(DRIVER.createReader(new InputStreamReader(new ByteArrayInputStream(content), "UTF-8")), null, holder);
+        } catch (XStreamException x) {
+            LOGGER.log(Level.WARNING, "leaving unreadable " + f + " unpacked", x);
+            return null;
+        }
+        if (!(o instanceof Tag) || ((Tag) o).node == null || holder.get(READ_ERROR) != null) {
+            LOGGER.log(Level.WARNING, "leaving {0} unpacked since it could not be read completely: {1}", new Object[] {f, holder.get(READ_ERROR)});
+            return null;
+        }
+        Tag t = (Tag) o;
+        return new Source(f, t.node, t.actions(), Util.getDigestOf(new ByteArrayInputStream(content)));
+    }
+
+    /**
+     * @return false if the node could not be encoded, in which case nothing was written
+     */
+    private static boolean add(PackedFlowNodeStorage.Writer writer, FlowNode node, List<Action> actions, File from) throws IOException {
+        try {
+            writer.add(node, actions);
+            return true;
+        } catch (PackedFlowNodeStorage.EncodingException x) {
+            LOGGER.log(Level.WARNING, "could not pack node " + node.getId() + " from " + from, x);
+            return false;
+        }
+    }
+
+    private static List<String> classesOf(List<Action> actions) {
+        List<String> classes = new ArrayList<String>(actions.size());
+        for (Action a : actions) {
+            classes.add(a.getClass().getName());
+        }
+        return classes;
+    }
+
+    /**
+     * Moves a packed node file aside, then deletes it if its content is still what was packed.
+     * A file rewritten meanwhile is put back, to be packed next time, unless a newer one has already replaced it.
+     */
+    private static void delete(Source source) throws IOException {
+        File f = source.file;
+        File aside = new File(f.getPath() + MOVED_ASIDE);
+        if (!f.renameTo(aside)) {
+            LOGGER.log(Level.WARNING, "could not move {0} aside", f);
+            return;
+        }
+        if (Util.getDigestOf(aside).equals(source.digest) || f.exists()) {
+            if (!aside.delete()) {
+                LOGGER.log(Level.WARNING, "could not delete {0}", aside);
+            }
+        } else if (!aside.renameTo(f)) {
+            LOGGER.log(Level.WARNING, "could not move {0} back", aside);
+        }
+    }
+
+    /**
+     * Puts back node files left moved aside by an interrupted {@link #delete}, unless they have been replaced meanwhile.
+     */
+    private static void restoreMovedAside(File dir) {
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            if (name.endsWith(".xml" + MOVED_ASIDE)) {
+                File aside = new File(dir, name);
+                File f = new File(dir, name.substring(0, name.length() - MOVED_ASIDE.length()));
+                if (f.exists() ? !aside.delete() : !aside.renameTo(f)) {
+                    LOGGER.log(Level.WARNING, "could not restore {0}", aside);
+                }
+            }
+        }
+    }
+
+    /**
+     * A node file as read for packing.
+     */
+    private static final class Source {
+        final File file;
+        final FlowNode node;
+        final List<Action> actions;
+        /** MD5 of the file content as read. */
+        final String digest;
+        Source(File file, FlowNode node, List<Action> actions, String digest) {
+            this.file = file;
+            this.node = node;
+            this.actions = actions;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * What {@link #pack(File, boolean)} did with one directory.
+     */
+    public static final class Result {
+        private final File dir;
+        int packed;
+        int kept;
+        long sourceActions;
+        long packedActions;
+
+        Result(File dir) {
+            this.dir = dir;
+        }
+
+        /**
+         * Number of node files packed.
+         */
+        public int getPackedCount() {
+            return packed;
+        }
+
+        /**
+         * Number of node files left unpacked since they could not be read or encoded completely.
+         */
+        public int getKeptCount() {
+            return kept;
+        }
+
+        /**
+         * Number of actions in the packed node files.
+         */
+        public long getSourceActionCount() {
+            return sourceActions;
+        }
+
+        /**
+         * Number of those actions read back from the pack; equal to {@link #getSourceActionCount} unless something was lost.
+         */
+        public long getPackedActionCount() {
+            return packedActions;
+        }
+
+        @Override public String toString() {
+            return dir + ": packed " + packed + " node files with " + sourceActions + " actions (" + packedActions + " read back); kept " + kept;
+        }
+    }
+
+    /** Key under which {@link RobustReflectionConverter} collects what it failed to deserialize. */
+    private static final String READ_ERROR = "ReadError";
+
+    /** Suffix of node files being deleted. */
+    private static final String MOVED_ASIDE = ".packed";
+
+    private static final XppDriver DRIVER = new XppDriver();
+
+    /**
+     * Finds node files by name.
+     */
+    static @Nonnull Map<String,File> nodeFiles(@Nonnull File dir) {
+        String[] names = dir.list();
+        if (names == null) {
+            return Collections.emptyMap();
+        }
+        List<String> ids = new ArrayList<String>();
+        for (String name : names) {
+            if (name.endsWith(".xml")) {
+                ids.add(name.substring(0, name.length() - ".xml".length()));
+            }
+        }
+        Collections.sort(ids, NodeIdIndex.ORDER);
+        Map<String,File> files = new LinkedHashMap<String,File>();
+        for (String id : ids) {
+            files.put(id, new File(dir, id + ".xml"));
+        }
+        return files;
+    }
+
+    private static final ExecutorService PACKER = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "FlowNodePacker"));
+
+    /**
+     * Packs completed builds in the background if {@link #PACK_ON_COMPLETION} is set.
+     */
+    @Extension public static final class CompletionListener extends RunListener<Run<?,?>> {
+        @Override public void onCompleted(Run<?,?> run, @Nonnull TaskListener listener) {
+            if (!PACK_ON_COMPLETION) {
+                return;
+            }
+            final File dir = new File(run.getRootDir(), "workflow"); // as used by CpsFlowExecution
+            if (!dir.isDirectory()) {
+                return;
+            }
+            PACKER.submit(new Runnable() {
+                @Override public void run() {
+                    try {
+                        int count = pack(dir);
+                        LOGGER.log(Level.FINE, "packed {0} flow nodes in {1}", new Object[] {count, dir});
+                    } catch (IOException x) {
+                        LOGGER.log(Level.WARNING, "failed to pack flow nodes in " + dir, x);
+                    }
+                }
+            });
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.model.Action;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+/**
+ * Converts a {@link FlowNode} together with its actions to and from the bytes of one storage record.
+ *
+ * <p>
+ * Each codec has a stable {@link #getId} which storage implementations persist next to the record,
+ * so that records written by one codec stay readable after the preferred codec changes.
+ *
+ * @see SegmentedFlowNodeStorage
+ */
+public abstract class FlowNodeRecordCodec {
+
+    /**
+     * Identifies records written by this codec. Must never change once records have been written.
+     */
+    public abstract byte getId();
+
+    /**
+     * Serializes a node and its actions.
+     */
+    public abstract @Nonnull byte[] encode(@Nonnull FlowNode node, @Nonnull List<Action> actions) throws IOException;
+
+    /**
+     * Deserializes a record written by {@link #encode}.
+     * The node is not yet attached to its execution.
+     * @param actions receives the deserialized actions of the node
+     */
+    public abstract @Nonnull FlowNode decode(@Nonnull byte[] data, @Nonnull List<Action> actions) throws IOException;
+
+    /**
+     * Serializes just a node, for storage which keeps actions separately.
+     */
+    public @Nonnull byte[] encodeNode(@Nonnull FlowNode node) throws IOException {
+        return encode(node, Collections.<Action>emptyList());
+    }
+
+    /**
+     * Deserializes a record written by {@link #encodeNode}.
+     */
+    public @Nonnull FlowNode decodeNode(@Nonnull byte[] data) throws IOException {
+        return decode(data, new ArrayList<Action>());
+    }
+
+    /**
+     * Serializes one action on its own, so that it can later be deserialized independently of the others.
+     */
+    public abstract @Nonnull byte[] encodeAction(@Nonnull Action action) throws IOException;
+
+    /**
+     * Deserializes a record written by {@link #encodeAction}.
+     * The action is not yet attached to its node.
+     */
+    public abstract @Nonnull Action decodeAction(@Nonnull byte[] data) throws IOException;
+
+    /**
+     * Looks up one of the built-in codecs.
+     * Variants which depend on state of an execution, such as a {@link StringTable}, are not available here.
+     * @return null if the id is unknown
+     */
+    public static @CheckForNull FlowNodeRecordCodec forId(byte id) {
+        if (id == XStreamRecordCodec.INSTANCE.getId()) {
+            return XStreamRecordCodec.INSTANCE;
+        }
+        if (id == BinaryRecordCodec.INSTANCE.getId()) {
+            return BinaryRecordCodec.INSTANCE;
+        }
+        return null;
+    }
+
+}
@@ -24,12 +24,21 @@
 
 package org.jenkinsci.plugins.workflow.support.storage;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import org.jenkinsci.plugins.workflow.flow.FlowDefinition;
 import org.jenkinsci.plugins.workflow.flow.FlowExecution;
 import org.jenkinsci.plugins.workflow.graph.FlowActionStorage;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.support.concurrent.Futures;
+import hudson.model.Action;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
 
 /**
  * Abstraction of various ways to persist {@link FlowNode}, for those {@link FlowExecution}s
@@ -50,4 +59,134 @@ public abstract class FlowNodeStorage implements FlowActionStorage {
      */
     public abstract @CheckForNull FlowNode getNode(String id) throws IOException;
     public abstract void storeNode(FlowNode n) throws IOException;
+
+    /**
+     * Like {@link #storeNode} but need not block the caller on disk I/O,
+     * so that a slow disk does not hold up the thread running the flow.
+     * The node must be visible to {@link #getNode} as soon as this returns, even before it is written,
+     * and writes of one execution must be performed in the order they were requested.
+     * The default implementation writes synchronously.
+     * @return completed once the node has been persisted, or failed with an {@link IOException}
+     */
+    public @Nonnull ListenableFuture<Void> storeNodeAsync(@Nonnull FlowNode n) {
+        try {
+            storeNode(n);
+            return Futures.immediateFuture(null);
+        } catch (IOException x) {
+            return Futures.immediateFailedFuture(x);
+        }
+    }
+
+    /**
+     * Like {@link #saveActions} but need not block the caller on disk I/O.
+     * The actions must be visible to {@link #loadActions} as soon as this returns.
+     * The default implementation writes synchronously.
+     * @see #storeNodeAsync
+     */
+    public @Nonnull ListenableFuture<Void> saveActionsAsync(@Nonnull FlowNode node, @Nonnull List<Action> actions) {
+        try {
+            saveActions(node, actions);
+            return Futures.immediateFuture(null);
+        } catch (IOException x) {
+            return Futures.immediateFailedFuture(x);
+        }
+    }
+
+    /**
+     * Looks up several nodes at once.
+     * Implementations may read all the missing nodes in one pass, in whatever order suits the storage, or in parallel.
+     * The default implementation just calls {@link #getNode} for each id.
+     * @return the nodes, in the iteration order of {@code ids}; ids of nodes which were never persisted are omitted
+     */
+    public @Nonnull Map<String,FlowNode> getNodes(@Nonnull Collection<String> ids) throws IOException {
+        Map<String,FlowNode> nodes = new LinkedHashMap<String,FlowNode>();
+        for (String id : ids) {
+            FlowNode n = getNode(id);
+            if (n != null) {
+                nodes.put(id, n);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Looks up the nodes with numeric ids in a range, as assigned by executions.
+     * @param from the first id, inclusive
+     * @param to the last id, exclusive
+     * @see #getNodes(Collection)
+     */
+    public @Nonnull Map<String,FlowNode> getNodes(int from, int to) throws IOException {
+        List<String> ids = new ArrayList<String>(Math.max(0, to - from));
+        for (int i = from; i < to; i++) {
+            ids.add(Integer.toString(i));
+        }
+        return getNodes(ids);
+    }
+
+    /**
+     * Hints that the given nodes will soon be requested, so they may be loaded into memory in bulk ahead of time.
+     */
+    public void prefetch(@Nonnull Collection<String> ids) throws IOException {
+        getNodes(ids);
+    }
+
+    /**
+     * Loads only the actions of a given type.
+     * Implementations which store actions individually may skip deserializing the others.
+     * The default implementation filters {@link #loadActions}.
+     */
+    public @Nonnull <T extends Action> List<T> loadActions(@Nonnull FlowNode node, @Nonnull Class<T> type) throws IOException {
+        List<T> actions = new ArrayList<T>();
+        for (Action a : loadActions(node)) {
+            if (type.isInstance(a)) {
+                actions.add(type.cast(a));
+            }
+        }
+        return actions;
+    }
+
+    /**
+     * Looks up where a node sits in the graph.
+     * Implementations may answer from an index, so that graph walks and block matching need not load node bodies.
+     * The default implementation loads the node.
+     * @return null if no node of the given ID has been persisted before
+     */
+    public @CheckForNull FlowNodeStructure getStructure(@Nonnull String id) throws IOException {
+        FlowNode n = getNode(id);
+        return n != null ? FlowNodeStructure.of(n) : null;
+    }
+
+    /**
+     * Ensures that everything passed to {@link #storeNode} and {@link #saveActions} so far has been persisted.
+     * The default implementation does nothing, suitable for storage which writes synchronously.
+     *
+     * <p>
+     * This is a barrier which the owning execution must call before it saves any state referring to nodes,
+     * in particular before the program is written with {@code RiverWriter}, and again when the flow completes.
+     * Otherwise a crash could leave a saved program which refers to nodes that were never written.
+     * Nothing in this plugin knows when those checkpoints occur, so the calls belong to the execution,
+     * such as {@code CpsFlowExecution} in {@code workflow-cps}.
+     * Until it makes them, storage which defers writes still flushes on its own on completion and at block boundaries,
+     * per {@link StorageDurability}.
+     */
+    public void flush() throws IOException {}
+
+    private volatile StorageStatistics statistics;
+
+    /**
+     * I/O counters of this storage, also added to {@link StorageStatistics#total}.
+     * Named after {@link #toString}, which implementations should override to say where they store nodes.
+     */
+    public @Nonnull StorageStatistics getStatistics() {
+        StorageStatistics s = statistics;
+        if (s == null) {
+            synchronized (this) {
+                s = statistics;
+                if (s == null) {
+                    statistics = s = StorageStatistics.forStorage(this, toString());
+                }
+            }
+        }
+        return s;
+    }
 }
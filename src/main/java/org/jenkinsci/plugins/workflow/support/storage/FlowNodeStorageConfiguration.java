@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.util.ListBoxModel;
+import javax.annotation.CheckForNull;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Selects the {@link FlowNodeStorageEngine} used by jobs which do not choose their own.
+ */
+@Extension public class FlowNodeStorageConfiguration extends GlobalConfiguration {
+
+    private String engine;
+
+    public FlowNodeStorageConfiguration() {
+        load();
+    }
+
+    /**
+     * @return null if not running in Jenkins
+     */
+    public static @CheckForNull FlowNodeStorageConfiguration get() {
+        return Jenkins.getInstance() == null ? null : GlobalConfiguration.all().get(FlowNodeStorageConfiguration.class);
+    }
+
+    /**
+     * @return the {@link FlowNodeStorageEngineDescriptor#getId} of the selected engine, or null for the built-in default
+     */
+    public @CheckForNull String getEngine() {
+        return Util.fixEmpty(engine);
+    }
+
+    public void setEngine(@CheckForNull String engine) {
+        this.engine = Util.fixEmpty(engine);
+        save();
+    }
+
+    @Override public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        setEngine(json.optString("engine"));
+        return true;
+    }
+
+    public ListBoxModel doFillEngineItems() {
+        return FlowNodeStorageEngine.items("Default (one XML file per node)");
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import hudson.Extension;
+import hudson.ExtensionPoint;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.util.ListBoxModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+
+/**
+ * A way of persisting flow nodes, selectable globally in {@link FlowNodeStorageConfiguration}
+ * or per job in {@link StorageDurabilityJobProperty}.
+ * Executions should obtain their storage from {@link #createStorage} rather than instantiating one.
+ * The engine chosen when a build starts is recorded next to its nodes, so changing the configuration only affects new builds.
+ *
+ * <p>
+ * Nothing in this plugin creates the storage of an execution, so the choice has no effect
+ * until {@code CpsFlowExecution} in {@code workflow-cps} calls {@link #createStorage}:
+ * from its {@code createStorage()}, used both when the execution starts and when it is loaded,
+ * in place of constructing {@link SimpleXStreamFlowNodeStorage} itself, and passing the same {@code workflow} directory.
+ * Builds stored before then have no {@link #ENGINE_FILE} and are recognized as {@link SimpleXStream},
+ * so that change needs no migration; it only needs to require a version of this plugin with this class.
+ */
+public abstract class FlowNodeStorageEngine extends AbstractDescribableImpl<FlowNodeStorageEngine> implements ExtensionPoint {
+
+    private static final Logger LOGGER = Logger.getLogger(FlowNodeStorageEngine.class.getName());
+
+    /**
+     * Name of the file in the storage directory holding the id of the engine which created it.
+     */
+    static final String ENGINE_FILE = "engine.txt";
+
+    /**
+     * Creates the storage for one execution.
+     * @param dir the directory reserved for the flow graph inside the build directory
+     */
+    public abstract @Nonnull FlowNodeStorage create(@Nonnull FlowExecution exec, @Nonnull File dir) throws IOException;
+
+    @Override public FlowNodeStorageEngineDescriptor getDescriptor() {
+        return (FlowNodeStorageEngineDescriptor) super.getDescriptor();
+    }
+
+    /**
+     * Creates the storage for an execution with the engine configured for its job.
+     * Should be called once the owner can be resolved to its build, such as when the execution starts or is loaded.
+     */
+    public static @Nonnull FlowNodeStorage createStorage(@Nonnull FlowExecution exec, @Nonnull File dir) throws IOException {
+        File marker = new File(dir, ENGINE_FILE);
+        FlowNodeStorageEngine engine;
+        if (marker.isFile()) {
+            String id = Files.toString(marker, Charsets.UTF_8).trim();
+            FlowNodeStorageEngineDescriptor d = byId(id);
+            if (d == null) {
+                throw new IOException("flow nodes in " + dir + " were stored by " + id + ", which is not installed");
+            }
+            engine = d.newEngine();
+        } else if (dir.isDirectory() && !isEmpty(dir)) {
+            engine = new SimpleXStream(); // written before engines could be chosen
+        } else {
+            engine = forOwner(exec.getOwner());
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("could not create " + dir);
+            }
+            String id = Jenkins.getInstance() != null ? engine.getDescriptor().getId() : engine.getClass().getName();
+            Files.write(id, marker, Charsets.UTF_8);
+        }
+        return engine.create(exec, dir);
+    }
+
+    private static boolean isEmpty(File dir) {
+        String[] names = dir.list();
+        return names == null || names.length == 0;
+    }
+
+    /**
+     * Looks up the engine configured for the job running a flow, else the global default, else {@link SimpleXStream}.
+     */
+    public static @Nonnull FlowNodeStorageEngine forOwner(@CheckForNull FlowExecutionOwner owner) {
+        String id = null;
+        if (owner != null) {
+            try {
+                Queue.Executable executable = owner.getExecutable();
+                if (executable instanceof Run) {
+                    Job<?,?> job = ((Run<?,?>) executable).getParent();
+                    StorageDurabilityJobProperty property = job.getProperty(StorageDurabilityJobProperty.class);
+                    if (property != null) {
+                        id = property.getEngine();
+                    }
+                }
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, "could not look up storage engine of " + owner, x);
+            }
+        }
+        if (id == null) {
+            FlowNodeStorageConfiguration config = FlowNodeStorageConfiguration.get();
+            if (config != null) {
+                id = config.getEngine();
+            }
+        }
+        FlowNodeStorageEngineDescriptor d = byId(id);
+        if (d != null) {
+            return d.newEngine();
+        }
+        if (Util.fixEmpty(id) != null && Jenkins.getInstance() != null) {
+            LOGGER.log(Level.WARNING, "no flow node storage engine {0}; using the default", id);
+        }
+        return new SimpleXStream();
+    }
+
+    /**
+     * @return null if no engine is registered with that id
+     */
+    public static @CheckForNull FlowNodeStorageEngineDescriptor byId(@CheckForNull String id) {
+        Jenkins j = Jenkins.getInstance();
+        if (Util.fixEmpty(id) == null || j == null) {
+            return null;
+        }
+        for (Descriptor<FlowNodeStorageEngine> d : j.getDescriptorList(FlowNodeStorageEngine.class)) {
+            if (d.getId().equals(id)) {
+                return (FlowNodeStorageEngineDescriptor) d;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lists the registered engines, preceded by an entry with an empty value.
+     * @param empty the label for the empty value, such as the default
+     */
+    static @Nonnull ListBoxModel items(@Nonnull String empty) {
+        ListBoxModel items = new ListBoxModel();
+        items.add(empty, "");
+        Jenkins j = Jenkins.getInstance();
+        if (j != null) {
+            for (Descriptor<FlowNodeStorageEngine> d : j.getDescriptorList(FlowNodeStorageEngine.class)) {
+                items.add(d.getDisplayName(), d.getId());
+            }
+        }
+        return items;
+    }
+
+    /**
+     * {@link SimpleXStreamFlowNodeStorage}, the default.
+     */
+    public static final class SimpleXStream extends FlowNodeStorageEngine {
+        @Override public FlowNodeStorage create(FlowExecution exec, File dir) {
+            return new SimpleXStreamFlowNodeStorage(exec, dir);
+        }
+        @Extension(ordinal = 100) public static final class DescriptorImpl extends FlowNodeStorageEngineDescriptor {
+            @Override public String getDisplayName() {
+                return "One XML file per node";
+            }
+        }
+    }
+
+    /**
+     * {@link SegmentedFlowNodeStorage}.
+     */
+    public static final class Segmented extends FlowNodeStorageEngine {
+        @Override public FlowNodeStorage create(FlowExecution exec, File dir) {
+            return new SegmentedFlowNodeStorage(exec, dir);
+        }
+        @Extension public static final class DescriptorImpl extends FlowNodeStorageEngineDescriptor {
+            @Override public String getDisplayName() {
+                return "Append-only segment files per build";
+            }
+        }
+    }
+
+    /**
+     * {@link KeyValueFlowNodeStorage}.
+     */
+    public static final class KeyValue extends FlowNodeStorageEngine {
+        @Override public FlowNodeStorage create(FlowExecution exec, File dir) throws IOException {
+            return new KeyValueFlowNodeStorage(exec, dir);
+        }
+        @Extension public static final class DescriptorImpl extends FlowNodeStorageEngineDescriptor {
+            @Override public String getDisplayName() {
+                return "Key-value store per job";
+            }
+        }
+    }
+
+}
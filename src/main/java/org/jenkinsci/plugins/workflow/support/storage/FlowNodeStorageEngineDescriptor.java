@@ -0,0 +1,49 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.model.Descriptor;
+import javax.annotation.Nonnull;
+
+/**
+ * Registers a {@link FlowNodeStorageEngine}.
+ */
+public abstract class FlowNodeStorageEngineDescriptor extends Descriptor<FlowNodeStorageEngine> {
+
+    /**
+     * Creates an engine with its default settings.
+     * The default implementation calls a public no-argument constructor.
+     */
+    public @Nonnull FlowNodeStorageEngine newEngine() {
+        try {
+            return clazz.newInstance();
+        } catch (InstantiationException x) {
+            throw new IllegalStateException("override newEngine in " + getClass().getName(), x);
+        } catch (IllegalAccessException x) {
+            throw new IllegalStateException("override newEngine in " + getClass().getName(), x);
+        }
+    }
+
+}
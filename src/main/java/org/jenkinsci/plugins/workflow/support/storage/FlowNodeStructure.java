@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.workflow.graph.BlockEndNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+/**
+ * The place of a {@link FlowNode} in the flow graph, available without loading the node itself.
+ * @see FlowNodeStorage#getStructure
+ */
+public final class FlowNodeStructure {
+
+    private final String id;
+    private final List<String> parentIds;
+    private final String nodeClass;
+    private final @CheckForNull String startId;
+
+    public FlowNodeStructure(@Nonnull String id, @Nonnull List<String> parentIds, @Nonnull String nodeClass, @CheckForNull String startId) {
+        this.id = id;
+        this.parentIds = Collections.unmodifiableList(parentIds);
+        this.nodeClass = nodeClass;
+        this.startId = startId;
+    }
+
+    static @Nonnull FlowNodeStructure of(@Nonnull FlowNode n) {
+        String startId = n instanceof BlockEndNode ? ((BlockEndNode<?>) n).getStartNode().getId() : null;
+        return new FlowNodeStructure(n.getId(), BinaryRecordCodec.parentIds(n), n.getClass().getName(), startId);
+    }
+
+    public @Nonnull String getId() {
+        return id;
+    }
+
+    public @Nonnull List<String> getParentIds() {
+        return parentIds;
+    }
+
+    /**
+     * Name of the {@link FlowNode} subclass, so callers need not load it to check the kind of node.
+     */
+    public @Nonnull String getNodeClass() {
+        return nodeClass;
+    }
+
+    /**
+     * For a {@link BlockEndNode}, the id of the matching start node.
+     */
+    public @CheckForNull String getStartId() {
+        return startId;
+    }
+
+    @Override public String toString() {
+        return "FlowNodeStructure[" + id + " <- " + parentIds + ", " + nodeClass + (startId != null ? ", start=" + startId : "") + "]";
+    }
+
+}
@@ -0,0 +1,499 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+import org.jenkinsci.plugins.workflow.graph.BlockEndNode;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
+import org.jenkinsci.plugins.workflow.graph.FlowEndNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+/**
+ * {@link FlowNodeStorage} keeping the nodes of all builds of a job in one {@link KeyValueStore} file,
+ * rather than one file per node.
+ *
+ * <p>
+ * Each build is a scope of the store. Stored nodes and saved actions are collected in memory, where reads find them,
+ * and committed as one batch at each block boundary, at {@link #flush}, and once the flow completes,
+ * so that each such step of the build is applied to the store entirely or not at all.
+ * Reading a range of ids is a scan of the index, and {@link #delete} drops a whole build in one record.
+ * Nodes are encoded by a {@link FlowNodeRecordCodec}; actions are encoded individually, so that
+ * {@link #loadActions(FlowNode, Class)} deserializes only those of the requested type.
+ *
+ * <p>
+ * Batches are written through to the operating system as they are committed.
+ * The {@link StorageDurability} of the build decides when they are forced to disk:
+ * at every block boundary and {@link #flush} for {@link StorageDurability#MAXIMUM},
+ * at {@link #flush} for {@link StorageDurability#PERFORMANCE}, and only once the flow completes for {@link StorageDurability#NONE}.
+ */
+public class KeyValueFlowNodeStorage extends FlowNodeStorage {
+
+    private static final Logger LOGGER = Logger.getLogger(KeyValueFlowNodeStorage.class.getName());
+
+    /**
+     * Name of the store file in the job directory.
+     */
+    public static final String FILE_NAME = "flowNodes.kv";
+
+    /**
+     * Size in bytes of uncommitted changes above which they are committed without waiting for the next block boundary,
+     * so that a long stretch of steps without one does not grow the batch without bound.
+     */
+    static int BATCH_LIMIT = Integer.getInteger(KeyValueFlowNodeStorage.class.getName() + ".batchLimit", 1024 * 1024);
+
+    private final FlowExecution exec;
+    /** Canonical, as {@link KeyValueStore#open} expects. */
+    private final File file;
+    private final String scope;
+    private final FlowNodeRecordCodec codec;
+    private final FlowNodeCache.Scope cacheScope;
+    /** Opened when first needed, and again after it was closed while idle. */
+    private volatile KeyValueStore store;
+    private final Pending pending = new Pending();
+    /** Null until first needed, since looking it up during construction could recursively load the build. */
+    private volatile StorageDurability durability;
+
+    /**
+     * Uses the store of the job owning the build of an execution.
+     * The store lives in the job directory, and the build is identified by number,
+     * so this works wherever builds are kept, even with a custom {@code buildsDir}.
+     * @param dir the storage directory inside the build directory, only used to drop cached nodes along with the build
+     * @throws IOException if the execution does not belong to a build
+     */
+    public KeyValueFlowNodeStorage(FlowExecution exec, File dir) throws IOException {
+        this(exec, run(exec), dir);
+    }
+
+    private KeyValueFlowNodeStorage(FlowExecution exec, Run<?,?> run, File dir) throws IOException {
+        this(exec, file(run.getParent()), scope(run), null, dir);
+    }
+
+    /**
+     * @param file the store, shared with other builds
+     * @param scope identifies the build within the store
+     * @param codec the codec for new records, or null for {@link BinaryRecordCodec}
+     */
+    public KeyValueFlowNodeStorage(FlowExecution exec, File file, String scope, @CheckForNull FlowNodeRecordCodec codec) throws IOException {
+        this(exec, file, scope, codec, null);
+    }
+
+    private KeyValueFlowNodeStorage(FlowExecution exec, File file, String scope, @CheckForNull FlowNodeRecordCodec codec, @CheckForNull File dir) throws IOException {
+        this.exec = exec;
+        this.file = file.getCanonicalFile();
+        this.scope = scope;
+        this.codec = codec != null ? codec : BinaryRecordCodec.INSTANCE;
+        this.cacheScope = FlowNodeCache.get().scope(dir);
+    }
+
+    private @Nonnull StorageDurability durability() {
+        StorageDurability d = durability;
+        if (d == null) {
+            durability = d = StorageDurability.forExecution(exec);
+        }
+        return d;
+    }
+
+    private static Run<?,?> run(FlowExecution exec) throws IOException {
+        FlowExecutionOwner owner = exec.getOwner();
+        Queue.Executable executable = owner.getExecutable();
+        if (!(executable instanceof Run)) {
+            throw new IOException("cannot locate the job of " + owner);
+        }
+        return (Run<?,?>) executable;
+    }
+
+    /**
+     * The store of a job.
+     */
+    static @Nonnull File file(@Nonnull Job<?,?> job) {
+        return new File(job.getRootDir(), FILE_NAME);
+    }
+
+    /**
+     * Identifies a build within the store of its job.
+     */
+    static @Nonnull String scope(@Nonnull Run<?,?> run) {
+        return Integer.toString(run.getNumber());
+    }
+
+    /**
+     * Leases the store, opening it again if it was closed while idle.
+     * The caller must {@link KeyValueStore#release} it.
+     */
+    private KeyValueStore lease() throws IOException {
+        KeyValueStore s = store;
+        while (s == null || !s.lease()) {
+            store = s = KeyValueStore.open(file);
+        }
+        return s;
+    }
+
+    private @CheckForNull byte[] get(String id, byte kind) throws IOException {
+        synchronized (pending) {
+            byte[] value = (kind == NODE ? pending.nodes : pending.actions).get(id);
+            if (value != null) {
+                return value;
+            }
+        }
+        KeyValueStore s = lease();
+        try {
+            return s.get(scope, id, kind);
+        } finally {
+            s.release();
+        }
+    }
+
+    @Override
+    public FlowNode getNode(String id) throws IOException {
+        FlowNode n = FlowNodeCache.get().get(cacheScope, id);
+        getStatistics().cache(n != null);
+        if (n != null) {
+            return n;
+        }
+        long start = System.nanoTime();
+        byte[] value = get(id, NODE);
+        if (value == null) {
+            return null;
+        }
+        getStatistics().read(System.nanoTime() - start, value.length);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+        n = codecFor(in.readByte()).decodeNode(rest(in));
+        SimpleXStreamFlowNodeStorage.setExecution(n, exec);
+        return FlowNodeCache.get().loaded(cacheScope, n, System.nanoTime() - start);
+    }
+
+    /**
+     * Looks up the range with one scan of the index, after committing anything pending so that the scan sees it.
+     */
+    @Override
+    public Map<String,FlowNode> getNodes(int from, int to) throws IOException {
+        Map<String,FlowNode> nodes = new LinkedHashMap<String,FlowNode>();
+        if (from >= to) {
+            return nodes;
+        }
+        synchronized (pending) {
+            commit();
+        }
+        List<String> ids;
+        KeyValueStore s = lease();
+        try {
+            ids = s.ids(scope, NODE, Integer.toString(from), Integer.toString(to));
+        } finally {
+            s.release();
+        }
+        for (String id : ids) {
+            FlowNode n = getNode(id);
+            if (n != null) {
+                nodes.put(id, n);
+            }
+        }
+        return nodes;
+    }
+
+    @Override
+    public void storeNode(FlowNode n) throws IOException {
+        FlowNodeCache.get().put(cacheScope, n);
+        boolean boundary = n instanceof BlockStartNode || n instanceof BlockEndNode;
+        synchronized (pending) {
+            if (!isStored(n.getId())) {
+                pending.put(pending.nodes, n.getId(), encodeNode(n));
+            }
+            if (boundary || n instanceof FlowEndNode || pending.bytes >= BATCH_LIMIT) {
+                commit();
+            }
+        }
+        if (n instanceof FlowEndNode || boundary && durability() == StorageDurability.MAXIMUM) {
+            force();
+        }
+    }
+
+    /**
+     * Whether a node is pending or committed. Called holding {@link #pending}.
+     */
+    private boolean isStored(String id) throws IOException {
+        if (pending.nodes.containsKey(id)) {
+            return true;
+        }
+        KeyValueStore s = lease();
+        try {
+            return s.contains(scope, id, NODE);
+        } finally {
+            s.release();
+        }
+    }
+
+    /**
+     * Commits pending changes as one batch. Called holding {@link #pending},
+     * and clears them only once committed, so that reads find them in one place or the other.
+     */
+    private void commit() throws IOException {
+        assert Thread.holdsLock(pending);
+        if (pending.isEmpty()) {
+            return;
+        }
+        KeyValueStore.Batch batch = new KeyValueStore.Batch();
+        for (Map.Entry<String,byte[]> e : pending.nodes.entrySet()) {
+            batch.put(scope, e.getKey(), NODE, e.getValue());
+        }
+        for (Map.Entry<String,byte[]> e : pending.actions.entrySet()) {
+            batch.put(scope, e.getKey(), ACTIONS, e.getValue());
+        }
+        long start = System.nanoTime();
+        KeyValueStore s = lease();
+        try {
+            s.commit(batch);
+        } finally {
+            s.release();
+        }
+        getStatistics().written(System.nanoTime() - start, pending.bytes);
+        pending.clear();
+    }
+
+    private void force() throws IOException {
+        KeyValueStore s = lease();
+        try {
+            s.force();
+        } finally {
+            s.release();
+        }
+    }
+
+    @Override
+    public List<Action> loadActions(FlowNode node) throws IOException {
+        return loadActions(node, Action.class);
+    }
+
+    @Override
+    public <T extends Action> List<T> loadActions(FlowNode node, Class<T> type) throws IOException {
+        long start = System.nanoTime();
+        byte[] value = get(node.getId(), ACTIONS);
+        if (value == null) {
+            return new ArrayList<T>();
+        }
+        getStatistics().read(System.nanoTime() - start, value.length);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+        int count = BinaryRecordCodec.readVarInt(in);
+        List<T> actions = new ArrayList<T>(count);
+        for (int i = 0; i < count; i++) {
+            FlowNodeRecordCodec c = codecFor(in.readByte());
+            String className = in.readUTF();
+            byte[] data = new byte[BinaryRecordCodec.readVarInt(in)];
+            in.readFully(data);
+            T a = SegmentedFlowNodeStorage.decodeAction(c, className, data, type, node, file);
+            if (a != null) {
+                actions.add(a);
+            }
+        }
+        return actions;
+    }
+
+    @Override
+    public void saveActions(FlowNode node, List<Action> actions) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        BinaryRecordCodec.writeVarInt(out, actions.size());
+        for (Action a : actions) {
+            if (a instanceof UnreadableAction) { // written back as loaded
+                UnreadableAction u = (UnreadableAction) a;
+                out.writeByte(u.codecId);
+                out.writeUTF(u.className);
+                BinaryRecordCodec.writeVarInt(out, u.data.length);
+                out.write(u.data);
+                continue;
+            }
+            byte[] data = codec.encodeAction(a);
+            out.writeByte(codec.getId());
+            out.writeUTF(SimpleXStreamFlowNodeStorage.XSTREAM.getMapper().serializedClass(a.getClass()));
+            BinaryRecordCodec.writeVarInt(out, data.length);
+            out.write(data);
+        }
+        out.flush();
+        synchronized (pending) {
+            if (!isStored(node.getId())) { // so that the node is committed along with its actions
+                pending.put(pending.nodes, node.getId(), encodeNode(node));
+            }
+            pending.put(pending.actions, node.getId(), baos.toByteArray());
+            if (pending.bytes >= BATCH_LIMIT) {
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Commits pending changes, and forces them to disk unless the durability of the build is {@link StorageDurability#NONE}.
+     */
+    @Override
+    public void flush() throws IOException {
+        synchronized (pending) {
+            commit();
+        }
+        if (durability() != StorageDurability.NONE) {
+            force();
+        }
+    }
+
+    /**
+     * Deletes all nodes and actions of this build from the store.
+     * Called when the build is deleted, so that a later build reusing its number starts empty.
+     * Does not open the store if it is not open already.
+     */
+    public void delete() throws IOException {
+        synchronized (pending) {
+            pending.clear();
+        }
+        KeyValueStore.commitDurably(file, new KeyValueStore.Batch().deleteScope(scope));
+    }
+
+    /**
+     * Result of the scan of the store when it was opened.
+     */
+    public @Nonnull RecoveryReport getRecoveryReport() throws IOException {
+        KeyValueStore s = lease();
+        try {
+            return s.getRecoveryReport();
+        } finally {
+            s.release();
+        }
+    }
+
+    @Override public String toString() {
+        return "KeyValueFlowNodeStorage[" + file + "#" + scope + "]";
+    }
+
+    /**
+     * Deletes the nodes of builds from the store of their job along with the builds.
+     */
+    @Extension public static final class Cleanup extends RunListener<Run<?,?>> {
+        @Override public void onDeleted(Run<?,?> run) {
+            File file = file(run.getParent());
+            if (!file.isFile()) {
+                return;
+            }
+            try {
+                new KeyValueFlowNodeStorage(null, file, scope(run), null).delete();
+            } catch (IOException x) {
+                LOGGER.log(Level.WARNING, "failed to delete flow nodes of " + run + " from " + file, x);
+            }
+        }
+    }
+
+    /**
+     * Closes the store of a job when the job is deleted or moved, since nothing would use it again.
+     */
+    @Extension public static final class JobCleanup extends ItemListener {
+        @Override public void onDeleted(Item item) {
+            if (item instanceof Job) {
+                evict(file((Job<?,?>) item));
+            }
+        }
+        @Override public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            KeyValueStore.evictMoved(); // the old location is gone, whatever layout it had
+        }
+        private static void evict(File file) {
+            try {
+                KeyValueStore.evict(file);
+            } catch (IOException x) {
+                LOGGER.log(Level.WARNING, "failed to close " + file, x);
+            }
+        }
+    }
+
+    private byte[] encodeNode(FlowNode n) throws IOException {
+        byte[] payload = codec.encodeNode(n);
+        byte[] value = new byte[1 + payload.length];
+        value[0] = codec.getId();
+        System.arraycopy(payload, 0, value, 1, payload.length);
+        return value;
+    }
+
+    private FlowNodeRecordCodec codecFor(byte id) throws IOException {
+        if (id == codec.getId()) {
+            return codec;
+        }
+        FlowNodeRecordCodec c = FlowNodeRecordCodec.forId(id);
+        if (c == null) {
+            throw new IOException("unknown codec " + id + " in " + file);
+        }
+        return c;
+    }
+
+    private static byte[] rest(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.available()];
+        in.readFully(b);
+        return b;
+    }
+
+    /**
+     * Encoded nodes and action lists not yet committed, by node id.
+     */
+    private static final class Pending {
+        final Map<String,byte[]> nodes = new LinkedHashMap<String,byte[]>();
+        final Map<String,byte[]> actions = new LinkedHashMap<String,byte[]>();
+        long bytes;
+
+        void put(Map<String,byte[]> map, String id, byte[] value) {
+            byte[] old = map.put(id, value);
+            bytes += value.length - (old != null ? old.length : 0);
+        }
+
+        boolean isEmpty() {
+            return nodes.isEmpty() && actions.isEmpty();
+        }
+
+        void clear() {
+            nodes.clear();
+            actions.clear();
+            bytes = 0;
+        }
+    }
+
+    /** Key kind of a node without its actions. */
+    private static final byte NODE = 1;
+    /** Key kind of the action list of a node. */
+    private static final byte ACTIONS = 2;
+}
@@ -0,0 +1,761 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Minimal embedded key-value store in a single append-only file, used by {@link KeyValueFlowNodeStorage}
+ * to keep the nodes of all builds of a job together.
+ *
+ * <p>
+ * Keys are a scope (the build), a node id and a kind, ordered so that each scope is contiguous
+ * and its ids are in numeric order, which makes scans and deletes of ranges cheap.
+ * Changes are grouped in a {@link Batch} written as one checksummed record, so a batch is applied entirely or not at all:
+ * on open, the file is scanned sequentially to rebuild the in-memory index, and an incomplete or damaged tail is truncated.
+ * Values are read in place by position. Once more than half of the file is superseded data, it is rewritten.
+ *
+ * <p>
+ * Open stores are shared per file. Those unused for {@code idleMinutes} are closed, dropping their index,
+ * so that an instance with many jobs does not keep the index of every job it ever built in memory.
+ * Users may therefore hold on to a store, but {@link #lease} it around each operation and {@link #open} it again once that fails.
+ */
+final class KeyValueStore {
+
+    private static final Logger LOGGER = Logger.getLogger(KeyValueStore.class.getName());
+
+    /**
+     * Garbage in bytes below which the file is never compacted.
+     */
+    static long COMPACT_THRESHOLD = Long.getLong(KeyValueStore.class.getName() + ".compactThreshold", 16 * 1024 * 1024);
+
+    /**
+     * Size in bytes of live data above which compaction starts a new batch.
+     */
+    static int COMPACT_BATCH_SIZE = Integer.getInteger(KeyValueStore.class.getName() + ".compactBatchSize", 1024 * 1024);
+
+    /**
+     * Minutes after which a store nobody has used is closed.
+     */
+    static long IDLE_MINUTES = Long.getLong(KeyValueStore.class.getName() + ".idleMinutes", 10);
+
+    private static final Map<File,KeyValueStore> OPEN = new HashMap<File,KeyValueStore>();
+    /** When {@link #OPEN} was last checked for idle stores. Guarded by {@link #OPEN}. */
+    private static long lastSweep;
+
+    /**
+     * Opens a store, or returns the instance already open for the same file.
+     * The result may be kept, but must be {@linkplain #lease leased} for each use since it is closed once idle.
+     * @param file the canonical path of the store
+     */
+    static @Nonnull KeyValueStore open(@Nonnull File file) throws IOException {
+        long now = System.currentTimeMillis();
+        synchronized (OPEN) {
+            if (now - lastSweep > TimeUnit.MINUTES.toMillis(1)) {
+                lastSweep = now;
+                closeIdle(now - TimeUnit.MINUTES.toMillis(IDLE_MINUTES));
+            }
+            KeyValueStore store = OPEN.get(file);
+            if (store == null) {
+                store = new KeyValueStore(file);
+                OPEN.put(file, store);
+            }
+            store.lastUsed = now;
+            return store;
+        }
+    }
+
+    /**
+     * Closes stores last used before a given time, unless they are leased.
+     */
+    private static void closeIdle(long before) {
+        assert Thread.holdsLock(OPEN);
+        for (Iterator<KeyValueStore> it = OPEN.values().iterator(); it.hasNext();) {
+            KeyValueStore store = it.next();
+            if (store.lastUsed < before && store.usage.writeLock().tryLock()) {
+                try {
+                    it.remove();
+                    store.closed = true;
+                    store.raf.close();
+                    LOGGER.log(Level.FINE, "closed idle {0}", store);
+                } catch (IOException x) {
+                    LOGGER.log(Level.WARNING, "failed to close " + store, x);
+                } finally {
+                    store.usage.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Commits a batch and forces it to disk, without opening the store if it is not open already,
+     * since that would scan the whole file just to record a change nobody reads right now.
+     * The batch is then appended for the next open to apply. Should the file end in a batch torn by a crash,
+     * it is dropped along with that one, which leaves its changes undone.
+     * @param file the canonical path of the store
+     */
+    static void commitDurably(@Nonnull File file, @Nonnull Batch batch) throws IOException {
+        if (batch.count == 0) {
+            return;
+        }
+        while (true) {
+            KeyValueStore store;
+            synchronized (OPEN) {
+                store = OPEN.get(file);
+                if (store == null) {
+                    append(file, batch); // under OPEN so that nobody scans the file meanwhile
+                    return;
+                }
+            }
+            if (store.lease()) {
+                try {
+                    store.commit(batch);
+                    store.force();
+                } finally {
+                    store.release();
+                }
+                return;
+            } // else closed since, so look again
+        }
+    }
+
+    private static void append(File file, Batch batch) throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            return; // nothing was ever stored
+        }
+        ByteBuffer record = record(batch);
+        RandomAccessFile r = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel c = r.getChannel();
+            long position = c.size();
+            while (record.hasRemaining()) {
+                position += c.write(record, position);
+            }
+            c.force(false);
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Closes a store if it is open, as when its job has been deleted or moved.
+     */
+    static void evict(@Nonnull File file) throws IOException {
+        KeyValueStore store;
+        synchronized (OPEN) {
+            store = OPEN.get(file.getCanonicalFile());
+        }
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    /**
+     * Closes open stores whose file no longer exists, as after the directory of a job was moved.
+     */
+    static void evictMoved() {
+        List<KeyValueStore> moved = new ArrayList<KeyValueStore>();
+        synchronized (OPEN) {
+            for (KeyValueStore store : OPEN.values()) {
+                if (!store.file.exists()) {
+                    moved.add(store);
+                }
+            }
+        }
+        for (KeyValueStore store : moved) {
+            try {
+                store.close();
+            } catch (IOException x) {
+                LOGGER.log(Level.WARNING, "failed to close " + store, x);
+            }
+        }
+    }
+
+    private final File file;
+    /** Readers share the file; commits and compaction exclude each other and readers. */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /** Held shared by each {@link #lease}, and exclusively to close the store. */
+    private final ReadWriteLock usage = new ReentrantReadWriteLock();
+    /** Set once the file is closed; guarded by the exclusive {@link #usage} lock, or by {@link #lock} when compaction fails. */
+    private volatile boolean closed;
+    private final ConcurrentSkipListMap<Key,Value> index = new ConcurrentSkipListMap<Key,Value>();
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    /** Position at which the next batch is appended. */
+    private long end;
+    /** Total length of values still referenced from {@link #index}. */
+    private long live;
+    private final RecoveryReport report;
+    /** See {@link #closeIdle}. */
+    private volatile long lastUsed;
+
+    private KeyValueStore(File file) throws IOException {
+        this.file = file;
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create " + dir);
+        }
+        File compacted = compacted(file);
+        if (!file.exists() && compacted.isFile()) { // compaction synced its copy but could not move it into place
+            Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.log(Level.WARNING, "restored {0} from {1}", new Object[] {file, compacted});
+        }
+        report = new RecoveryReport(file);
+        scan();
+        report.done();
+        if (!report.isClean()) {
+            LOGGER.log(Level.WARNING, "recovered flow node store: {0}", report);
+        }
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        if (end == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(MAGIC).putShort((short) VERSION).flip();
+            write(header, 0);
+            end = HEADER_SIZE;
+        }
+    }
+
+    /**
+     * Rebuilds the index, verifying the checksum of every batch and truncating the file at the first bad one.
+     */
+    private void scan() throws IOException {
+        long length = file.length();
+        long offset = 0;
+        String problem = null;
+        if (length > 0) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            try {
+                if (length < HEADER_SIZE) {
+                    problem = "incomplete header";
+                } else {
+                    if (in.readLong() != MAGIC) {
+                        throw new IOException(file + " is not a flow node store");
+                    }
+                    int version = in.readShort();
+                    if (version != VERSION) {
+                        throw new IOException("unsupported version " + version + " of " + file);
+                    }
+                    offset = HEADER_SIZE;
+                }
+                while (problem == null && offset < length) {
+                    if (length - offset < BATCH_HEADER_SIZE) {
+                        problem = "incomplete batch header";
+                        break;
+                    }
+                    int size = in.readInt();
+                    int checksum = in.readInt();
+                    if (size < 4 || offset + BATCH_HEADER_SIZE + size > length) {
+                        problem = "incomplete batch";
+                        break;
+                    }
+                    byte[] body = new byte[size];
+                    in.readFully(body);
+                    if (checksum(body, 0, size) != checksum) {
+                        problem = "checksum mismatch";
+                        break;
+                    }
+                    apply(body, offset + BATCH_HEADER_SIZE);
+                    report.checked();
+                    offset += BATCH_HEADER_SIZE + size;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        if (problem != null) {
+            report.problem(problem + " at " + offset + " in " + file + "; dropped " + (length - offset) + " bytes");
+            report.truncated(length - offset);
+            RandomAccessFile r = new RandomAccessFile(file, "rw");
+            try {
+                r.setLength(offset);
+            } finally {
+                r.close();
+            }
+        }
+        end = offset;
+    }
+
+    /**
+     * Updates the index from the body of a batch.
+     * @param position where the body starts in the file
+     */
+    private void apply(byte[] body, long position) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte op = in.readByte();
+            String scope = in.readUTF();
+            if (op == DELETE_SCOPE) {
+                deleteScope(scope);
+                continue;
+            }
+            Key key = new Key(scope, in.readUTF(), in.readByte(), 0);
+            switch (op) {
+            case PUT:
+                int length = BinaryRecordCodec.readVarInt(in);
+                long valueOffset = position + body.length - in.available();
+                if (in.skipBytes(length) != length) {
+                    throw new IOException("truncated value of " + key + " in " + file);
+                }
+                Value old = index.put(key, new Value(valueOffset, length));
+                live += length - (old != null ? old.length : 0);
+                break;
+            case DELETE:
+                Value removed = index.remove(key);
+                if (removed != null) {
+                    live -= removed.length;
+                }
+                break;
+            default:
+                throw new IOException("unknown operation " + op + " in " + file);
+            }
+        }
+    }
+
+    private void deleteScope(String scope) {
+        NavigableMap<Key,Value> range = index.subMap(Key.first(scope), true, Key.last(scope), true);
+        for (Value v : range.values()) {
+            live -= v.length;
+        }
+        range.clear();
+    }
+
+    /**
+     * @return a copy of the value, or null if there is none
+     */
+    @CheckForNull byte[] get(@Nonnull String scope, @Nonnull String id, byte kind) throws IOException {
+        lock.readLock().lock();
+        try {
+            Value v = index.get(new Key(scope, id, kind, 0));
+            if (v == null) {
+                return null;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(v.length);
+            long position = v.offset;
+            while (buf.hasRemaining()) {
+                int read = channel.read(buf, position);
+                if (read < 0) {
+                    throw new IOException("unexpected end of " + file);
+                }
+                position += read;
+            }
+            return buf.array();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean contains(@Nonnull String scope, @Nonnull String id, byte kind) {
+        return index.containsKey(new Key(scope, id, kind, 0));
+    }
+
+    /**
+     * Lists the ids with a value of the given kind in a scope, in id order.
+     * @param from the first id, inclusive, or null to start at the beginning of the scope
+     * @param to the last id, exclusive, or null to continue to the end of the scope
+     */
+    @Nonnull List<String> ids(@Nonnull String scope, byte kind, @CheckForNull String from, @CheckForNull String to) {
+        Key low = from != null ? new Key(scope, from, Byte.MIN_VALUE, 0) : Key.first(scope);
+        Key high = to != null ? new Key(scope, to, Byte.MIN_VALUE, 0) : Key.last(scope);
+        List<String> ids = new ArrayList<String>();
+        for (Key k : index.subMap(low, true, high, false).keySet()) {
+            if (k.kind == kind) {
+                ids.add(k.id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Marks the store in use, so that it is not closed meanwhile.
+     * Each successful call must be followed by {@link #release}.
+     * @return false if the store has been closed, in which case {@link #open} it again
+     */
+    boolean lease() {
+        usage.readLock().lock();
+        if (closed) {
+            usage.readLock().unlock();
+            return false;
+        }
+        lastUsed = System.currentTimeMillis();
+        return true;
+    }
+
+    void release() {
+        usage.readLock().unlock();
+    }
+
+    /**
+     * Appends a batch and applies it to the index atomically.
+     */
+    void commit(@Nonnull Batch batch) throws IOException {
+        if (batch.count == 0) {
+            return;
+        }
+        ByteBuffer record = record(batch);
+        lock.writeLock().lock();
+        try {
+            long position = end;
+            write(record, position);
+            end = position + record.limit();
+            byte[] body = new byte[record.limit() - BATCH_HEADER_SIZE];
+            System.arraycopy(record.array(), BATCH_HEADER_SIZE, body, 0, body.length);
+            apply(body, position + BATCH_HEADER_SIZE);
+            long garbage = end - HEADER_SIZE - live;
+            if (garbage > COMPACT_THRESHOLD && garbage > live) {
+                try {
+                    compact();
+                } catch (IOException x) {
+                    LOGGER.log(Level.WARNING, "failed to compact " + file, x); // the batch itself was committed
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static ByteBuffer record(Batch batch) {
+        byte[] ops = batch.buf.toByteArray();
+        ByteBuffer record = ByteBuffer.allocate(BATCH_HEADER_SIZE + 4 + ops.length);
+        record.putInt(4 + ops.length).putInt(0).putInt(batch.count).put(ops);
+        record.putInt(4, checksum(record.array(), BATCH_HEADER_SIZE, 4 + ops.length));
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Makes all committed batches durable.
+     */
+    void force() throws IOException {
+        lock.readLock().lock();
+        try {
+            channel.force(false);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the file with only live values, in key order,
+     * as batches of about {@link #COMPACT_BATCH_SIZE} bytes, so that memory use does not grow with the job.
+     * The copy replaces the file in one atomic move; should that fail, whichever of them survives is kept.
+     */
+    private void compact() throws IOException {
+        File tmp = compacted(file);
+        Map<Key,Value> moved = new HashMap<Key,Value>();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+        try {
+            out.writeLong(MAGIC);
+            out.writeShort(VERSION);
+            long position = HEADER_SIZE;
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            Map<Key,int[]> pending = new HashMap<Key,int[]>(); // key → offset within the batch body and length of the value
+            int count = 0;
+            for (Map.Entry<Key,Value> e : index.entrySet()) {
+                Key k = e.getKey();
+                byte[] value = get(k.scope, k.id, k.kind);
+                dos.writeByte(PUT);
+                dos.writeUTF(k.scope);
+                dos.writeUTF(k.id);
+                dos.writeByte(k.kind);
+                BinaryRecordCodec.writeVarInt(dos, value.length);
+                dos.flush();
+                pending.put(k, new int[] {4 + baos.size(), value.length});
+                dos.write(value);
+                count++;
+                if (baos.size() >= COMPACT_BATCH_SIZE) {
+                    position = writeBatch(out, position, count, baos, pending, moved);
+                    count = 0;
+                }
+            }
+            if (count > 0) {
+                writeBatch(out, position, count, baos, pending, moved);
+            }
+            out.flush();
+        } finally {
+            out.close();
+        }
+        RandomAccessFile sync = new RandomAccessFile(tmp, "rw");
+        try {
+            sync.getFD().sync();
+        } finally {
+            sync.close();
+        }
+        raf.close();
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException x) {
+            if (!file.isFile()) { // the copy is all that is left, so keep it for the next open to restore
+                closed = true;
+                synchronized (OPEN) {
+                    if (OPEN.get(file) == this) {
+                        OPEN.remove(file);
+                    }
+                }
+                throw new IOException("could not replace " + file + " by " + tmp + ", which is kept", x);
+            }
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            if (!tmp.delete()) {
+                LOGGER.log(Level.WARNING, "could not delete {0}", tmp);
+            }
+            throw x;
+        }
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        long before = end;
+        end = raf.length();
+        index.putAll(moved);
+        LOGGER.log(Level.FINE, "compacted {0} from {1} to {2} bytes", new Object[] {file, before, end});
+    }
+
+    /**
+     * Where {@link #compact} writes the new copy of a store.
+     */
+    static @Nonnull File compacted(@Nonnull File file) {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * Writes the operations collected by {@link #compact} as one batch and clears them.
+     * @param position where the batch starts in the new file
+     * @param values offsets of the values of the batch within its body, and their lengths
+     * @param moved receives the new locations of the values
+     * @return the position after the batch
+     */
+    private static long writeBatch(DataOutputStream out, long position, int count, ByteArrayOutputStream ops, Map<Key,int[]> values, Map<Key,Value> moved) throws IOException {
+        byte[] body = new byte[4 + ops.size()];
+        ByteBuffer.wrap(body).putInt(count).put(ops.toByteArray());
+        out.writeInt(body.length);
+        out.writeInt(checksum(body, 0, body.length));
+        out.write(body);
+        long bodyStart = position + BATCH_HEADER_SIZE;
+        for (Map.Entry<Key,int[]> e : values.entrySet()) {
+            moved.put(e.getKey(), new Value(bodyStart + e.getValue()[0], e.getValue()[1]));
+        }
+        ops.reset();
+        values.clear();
+        return bodyStart + body.length;
+    }
+
+    private void write(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    /**
+     * Result of the scan when the store was opened.
+     */
+    @Nonnull RecoveryReport getRecoveryReport() {
+        return report;
+    }
+
+    long getFileSize() {
+        return end;
+    }
+
+    long getLiveBytes() {
+        return live;
+    }
+
+    /**
+     * Closes the file once no lease is held, so it must not be called while holding one;
+     * the next {@link #open} for it starts afresh.
+     */
+    void close() throws IOException {
+        synchronized (OPEN) {
+            if (OPEN.get(file) == this) { // else already closed when idle, and opened again since
+                OPEN.remove(file);
+            }
+        }
+        usage.writeLock().lock();
+        try {
+            if (!closed) {
+                closed = true;
+                raf.close();
+            }
+        } finally {
+            usage.writeLock().unlock();
+        }
+    }
+
+    @Override public String toString() {
+        return "KeyValueStore[" + file + "]";
+    }
+
+    private static int checksum(byte[] b, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(b, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Changes to be committed together.
+     */
+    static final class Batch {
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(buf);
+        private int count;
+
+        Batch put(@Nonnull String scope, @Nonnull String id, byte kind, @Nonnull byte[] value) throws IOException {
+            out.writeByte(PUT);
+            out.writeUTF(scope);
+            out.writeUTF(id);
+            out.writeByte(kind);
+            BinaryRecordCodec.writeVarInt(out, value.length);
+            out.write(value);
+            count++;
+            return this;
+        }
+
+        Batch delete(@Nonnull String scope, @Nonnull String id, byte kind) throws IOException {
+            out.writeByte(DELETE);
+            out.writeUTF(scope);
+            out.writeUTF(id);
+            out.writeByte(kind);
+            count++;
+            return this;
+        }
+
+        /**
+         * Deletes every key in a scope.
+         */
+        Batch deleteScope(@Nonnull String scope) throws IOException {
+            out.writeByte(DELETE_SCOPE);
+            out.writeUTF(scope);
+            count++;
+            return this;
+        }
+
+        boolean isEmpty() {
+            return count == 0;
+        }
+    }
+
+    /**
+     * Ordered by scope, then id per {@link NodeIdIndex#ORDER}, then kind.
+     * The sentinel keys from {@link #first} and {@link #last} sort around every id of their scope.
+     */
+    private static final class Key implements Comparable<Key> {
+        final String scope;
+        final String id;
+        final byte kind;
+        /** -1 before all ids of the scope, 1 after them, else 0. */
+        final int bound;
+
+        Key(String scope, String id, byte kind, int bound) {
+            this.scope = scope;
+            this.id = id;
+            this.kind = kind;
+            this.bound = bound;
+        }
+
+        static Key first(String scope) {
+            return new Key(scope, "", Byte.MIN_VALUE, -1);
+        }
+
+        static Key last(String scope) {
+            return new Key(scope, "", Byte.MAX_VALUE, 1);
+        }
+
+        @Override public int compareTo(Key o) {
+            int c = scope.compareTo(o.scope);
+            if (c != 0) {
+                return c;
+            }
+            if (bound != o.bound) {
+                return bound < o.bound ? -1 : 1;
+            }
+            c = NodeIdIndex.ORDER.compare(id, o.id);
+            if (c != 0) {
+                return c;
+            }
+            return kind < o.kind ? -1 : kind == o.kind ? 0 : 1;
+        }
+
+        @Override public boolean equals(Object o) {
+            return o instanceof Key && compareTo((Key) o) == 0;
+        }
+
+        @Override public int hashCode() {
+            return scope.hashCode() * 31 + id.hashCode() + kind;
+        }
+
+        @Override public String toString() {
+            return scope + "/" + id + "/" + kind;
+        }
+    }
+
+    private static final class Value {
+        final long offset;
+        final int length;
+        Value(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte DELETE_SCOPE = 3;
+
+    /*constant*/ static final long MAGIC = 0x466c6f774b567374L; // "FlowKVst"
+    /*constant*/ static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8 + 2;
+    /** Length and CRC-32 of the body of a batch. */
+    private static final int BATCH_HEADER_SIZE = 4 + 4;
+}
@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+
+/**
+ * Map from flow node id to a non-negative {@code long}, such as the location of a record.
+ * Executions assign dense decimal ids, so those are kept in a primitive array indexed by the numeric id;
+ * any other id falls back to a general map.
+ * Not thread-safe.
+ */
+final class NodeIdIndex {
+
+    static final long ABSENT = -1;
+
+    /**
+     * Largest numeric id kept in the dense array, so a stray huge id cannot cause an enormous allocation.
+     */
+    static final int MAX_DENSE = 1 << 24;
+
+    private long[] dense = newArray(64);
+    private int size;
+    private @CheckForNull Map<String,Long> other;
+
+    /**
+     * @return the value, or {@link #ABSENT}
+     */
+    long get(String id) {
+        int i = parse(id);
+        if (i >= 0 && i < MAX_DENSE) {
+            return i < dense.length ? dense[i] : ABSENT;
+        }
+        if (other == null) {
+            return ABSENT;
+        }
+        Long v = other.get(id);
+        return v != null ? v : ABSENT;
+    }
+
+    boolean contains(String id) {
+        return get(id) != ABSENT;
+    }
+
+    void put(String id, long value) {
+        assert value >= 0;
+        int i = parse(id);
+        if (i >= 0 && i < MAX_DENSE) {
+            if (i >= dense.length) {
+                long[] grown = newArray(Math.min(MAX_DENSE, Math.max(i + 1, dense.length * 2)));
+                System.arraycopy(dense, 0, grown, 0, dense.length);
+                dense = grown;
+            }
+            if (dense[i] == ABSENT) {
+                size++;
+            }
+            dense[i] = value;
+            return;
+        }
+        if (other == null) {
+            other = new HashMap<String,Long>();
+        }
+        if (other.put(id, value) == null) {
+            size++;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static long[] newArray(int length) {
+        long[] a = new long[length];
+        Arrays.fill(a, ABSENT);
+        return a;
+    }
+
+    /**
+     * Sorts numeric ids by value, ahead of any others, which are sorted as strings.
+     * For storage which writes nodes as they are created, this approximates the order on disk.
+     */
+    static final Comparator<String> ORDER = new Comparator<String>() {
+        @Override public int compare(String a, String b) {
+            int x = parse(a);
+            int y = parse(b);
+            if (x >= 0 && y >= 0) {
+                return x < y ? -1 : x == y ? 0 : 1;
+            } else if (x >= 0) {
+                return -1;
+            } else if (y >= 0) {
+                return 1;
+            } else {
+                return a.compareTo(b);
+            }
+        }
+    };
+
+    /**
+     * Parses an id in the canonical form assigned by executions.
+     * @return the numeric id, or -1 if the id is not a plain non-negative decimal number without leading zeros
+     */
+    static int parse(String id) {
+        int length = id.length();
+        if (length == 0 || length > 9 || (length > 1 && id.charAt(0) == '0')) {
+            return -1;
+        }
+        int v = 0;
+        for (int i = 0; i < length; i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+
+/**
+ * Set of node ids, using one bit per numeric id below {@link NodeIdIndex#MAX_DENSE}.
+ * Not thread-safe.
+ */
+final class NodeIdSet {
+
+    private final BitSet dense = new BitSet();
+    private @CheckForNull Set<String> other;
+
+    boolean contains(String id) {
+        int i = NodeIdIndex.parse(id);
+        if (i >= 0 && i < NodeIdIndex.MAX_DENSE) {
+            return dense.get(i);
+        }
+        return other != null && other.contains(id);
+    }
+
+    void add(String id) {
+        int i = NodeIdIndex.parse(id);
+        if (i >= 0 && i < NodeIdIndex.MAX_DENSE) {
+            dense.set(i);
+        } else {
+            if (other == null) {
+                other = new HashSet<String>();
+            }
+            other.add(id);
+        }
+    }
+
+    void remove(String id) {
+        int i = NodeIdIndex.parse(id);
+        if (i >= 0 && i < NodeIdIndex.MAX_DENSE) {
+            dense.clear(i);
+        } else if (other != null) {
+            other.remove(id);
+        }
+    }
+
+}
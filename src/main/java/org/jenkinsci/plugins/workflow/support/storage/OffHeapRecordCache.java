@@ -0,0 +1,187 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.CheckForNull;
+
+/**
+ * Second-level cache of serialized records, held in direct buffers outside the Java heap.
+ *
+ * <p>
+ * Space is divided into fixed-size slabs used as a ring: records are appended to the current slab,
+ * and when the ring wraps around, the oldest slab is reclaimed wholesale along with all records in it.
+ * So there is no per-record allocation, and nothing for the garbage collector to trace beyond a small index.
+ * Slabs are allocated only as they are first needed.
+ */
+final class OffHeapRecordCache {
+
+    static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+
+    private final int slabSize;
+    private final ByteBuffer[] slabs;
+    /** Keys of the records in each slab, so they can be dropped when it is reused. */
+    private final List<List<Key>> keysOf;
+    /** Key to location: slab number in the high word, offset in the low word; the length is stored in the slab. */
+    private final Map<Key,Long> index = new HashMap<Key,Long>();
+    /** Stands in for owners in keys, so that the cache does not keep storages reachable. */
+    private final Map<Object,Long> tokens = new WeakHashMap<Object,Long>();
+    private long nextToken;
+    private int current;
+    private int position;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    OffHeapRecordCache(long maximumBytes, int slabSize) {
+        this.slabSize = (int) Math.min(slabSize, maximumBytes);
+        int count = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maximumBytes / this.slabSize));
+        slabs = new ByteBuffer[count];
+        keysOf = new ArrayList<List<Key>>(count);
+        for (int i = 0; i < count; i++) {
+            keysOf.add(new ArrayList<Key>());
+        }
+    }
+
+    /**
+     * Stores a record, replacing any older one for the same key.
+     * Records which would not fit in a slab are ignored.
+     */
+    synchronized void put(Object owner, String id, byte[] record) {
+        if (record.length + 4 > slabSize) {
+            return;
+        }
+        if (slabs[current] == null) {
+            slabs[current] = ByteBuffer.allocateDirect(slabSize);
+        }
+        if (position + 4 + record.length > slabSize) {
+            current = (current + 1) % slabs.length;
+            position = 0;
+            if (slabs[current] == null) {
+                slabs[current] = ByteBuffer.allocateDirect(slabSize);
+            }
+            List<Key> reclaimed = keysOf.get(current);
+            for (Key k : reclaimed) {
+                Long loc = index.get(k);
+                if (loc != null && (int) (loc >>> 32) == current) {
+                    index.remove(k);
+                }
+            }
+            reclaimed.clear();
+        }
+        ByteBuffer slab = slabs[current].duplicate();
+        slab.position(position);
+        slab.putInt(record.length);
+        slab.put(record);
+        Key key = new Key(token(owner), id);
+        index.put(key, ((long) current << 32) | position);
+        keysOf.get(current).add(key);
+        position += 4 + record.length;
+    }
+
+    /**
+     * @return a copy of the record, or null
+     */
+    synchronized @CheckForNull byte[] get(Object owner, String id) {
+        Long t = tokens.get(owner);
+        Long loc = t != null ? index.get(new Key(t, id)) : null;
+        if (loc == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        ByteBuffer slab = slabs[(int) (loc >>> 32)].duplicate();
+        slab.position((int) (long) loc);
+        byte[] record = new byte[slab.getInt()];
+        slab.get(record);
+        hits.incrementAndGet();
+        return record;
+    }
+
+    /**
+     * Forgets all records of an owner. Their space is reclaimed along with their slabs.
+     */
+    synchronized void invalidate(Object owner) {
+        tokens.remove(owner);
+    }
+
+    private long token(Object owner) {
+        Long t = tokens.get(owner);
+        if (t == null) {
+            t = nextToken++;
+            tokens.put(owner, t);
+        }
+        return t;
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    synchronized int getSize() {
+        return index.size();
+    }
+
+    /**
+     * Bytes of direct memory allocated so far.
+     */
+    synchronized long getAllocatedBytes() {
+        long bytes = 0;
+        for (ByteBuffer slab : slabs) {
+            if (slab != null) {
+                bytes += slab.capacity();
+            }
+        }
+        return bytes;
+    }
+
+    private static final class Key {
+        private final long owner;
+        private final String id;
+
+        Key(long owner, String id) {
+            this.owner = owner;
+            this.id = id;
+        }
+
+        @Override public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).owner == owner && ((Key) o).id.equals(id);
+        }
+
+        @Override public int hashCode() {
+            return (int) (owner ^ (owner >>> 32)) * 31 + id.hashCode();
+        }
+    }
+
+}
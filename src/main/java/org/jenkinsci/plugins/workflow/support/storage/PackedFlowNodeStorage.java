@@ -0,0 +1,468 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.model.Action;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+/**
+ * Read-only {@link FlowNodeStorage} serving a completed flow from one immutable, memory-mapped file.
+ *
+ * <p>
+ * The file holds the serialized nodes and their actions, followed by a table of distinct strings
+ * (node ids and action class names) and an offset table sorted by node id, which is binary searched.
+ * Only the string table is read onto the heap when the file is opened.
+ * Packs are written by {@link FlowNodePacker}.
+ */
+public class PackedFlowNodeStorage extends FlowNodeStorage {
+
+    /** Name of the pack within a flow node storage directory. */
+    public static final String FILE_NAME = "nodes.pack";
+
+    private static final Logger LOGGER = Logger.getLogger(PackedFlowNodeStorage.class.getName());
+
+    private final FlowExecution exec;
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final FlowNodeRecordCodec codec;
+    private final String[] strings;
+    private final int count;
+    private final int table;
+    private final FlowNodeCache.Scope cacheScope;
+    /** Number of {@link #lease}s not yet released. Guarded by this. */
+    private int leases;
+    /** Set by {@link #close}. Guarded by this. */
+    private boolean closing;
+
+    public PackedFlowNodeStorage(FlowExecution exec, File file) throws IOException {
+        this.exec = exec;
+        this.file = file;
+        this.cacheScope = FlowNodeCache.get().scope(file.getParentFile());
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to map");
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            raf.close(); // the mapping stays valid
+        }
+        try {
+            ByteBuffer b = buffer.duplicate();
+            if (b.getLong() != MAGIC) {
+                throw new IOException(file + " is not a flow node pack");
+            }
+            int version = b.getShort();
+            if (version != VERSION) {
+                throw new IOException("unsupported version " + version + " of " + file);
+            }
+            FlowNodeRecordCodec c = FlowNodeRecordCodec.forId(b.get());
+            if (c == null) {
+                throw new IOException("unknown codec in " + file);
+            }
+            codec = c;
+            count = b.getInt();
+            int stringCount = b.getInt();
+            int stringsOffset = b.getInt();
+            table = b.getInt();
+            if (table < 0 || (long) table + (long) count * TABLE_ENTRY_SIZE != length) {
+                throw new IOException(file + " is truncated");
+            }
+            strings = new String[stringCount];
+            b.position(stringsOffset);
+            for (int i = 0; i < stringCount; i++) {
+                strings[i] = readUTF(b);
+            }
+        } catch (BufferUnderflowException x) {
+            throw (IOException) new EOFException(file + " is truncated").initCause(x);
+        } catch (IllegalArgumentException x) {
+            throw new IOException(file + " is corrupt", x);
+        }
+    }
+
+    /**
+     * Number of nodes in the pack.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * All node ids in the pack, in {@link NodeIdIndex#ORDER}.
+     */
+    public @Nonnull List<String> getIds() {
+        List<String> ids = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(strings[buffer.getInt(table + i * TABLE_ENTRY_SIZE)]);
+        }
+        return ids;
+    }
+
+    /**
+     * Checks every record against the checksum recorded when the pack was written.
+     * @throws IOException if any record does not match
+     */
+    public void verify() throws IOException {
+        for (int i = 0; i < count; i++) {
+            int pos = table + i * TABLE_ENTRY_SIZE;
+            CRC32 crc = new CRC32();
+            crc.update(bytes(buffer.getInt(pos + 4), buffer.getInt(pos + 12)));
+            if ((int) crc.getValue() != buffer.getInt(pos + 16)) {
+                throw new IOException("checksum mismatch for node " + strings[buffer.getInt(pos)] + " in " + file);
+            }
+        }
+    }
+
+    public boolean contains(@Nonnull String id) {
+        return find(id) >= 0;
+    }
+
+    @Override
+    public FlowNode getNode(String id) throws IOException {
+        FlowNode n = FlowNodeCache.get().get(cacheScope, id);
+        getStatistics().cache(n != null);
+        if (n != null) {
+            return n;
+        }
+        long start = System.nanoTime();
+        n = read(id);
+        return n != null ? FlowNodeCache.get().loaded(cacheScope, n, System.nanoTime() - start) : null;
+    }
+
+    @Override public String toString() {
+        return "PackedFlowNodeStorage[" + file + "]";
+    }
+
+    /**
+     * Deserializes a node without consulting or populating the cache.
+     */
+    @CheckForNull FlowNode read(@Nonnull String id) throws IOException {
+        int entry = find(id);
+        if (entry < 0) {
+            return null;
+        }
+        FlowNode n = codec.decodeNode(bytes(buffer.getInt(entry + 4), buffer.getInt(entry + 8)));
+        SimpleXStreamFlowNodeStorage.setExecution(n, exec);
+        return n;
+    }
+
+    @Override
+    public List<Action> loadActions(FlowNode node) throws IOException {
+        return loadActions(node, Action.class);
+    }
+
+    @Override
+    public <T extends Action> List<T> loadActions(FlowNode node, Class<T> type) throws IOException {
+        int entry = find(node.getId());
+        if (entry < 0) {
+            return new ArrayList<T>();
+        }
+        ByteBuffer b = buffer.duplicate();
+        b.position(buffer.getInt(entry + 4) + buffer.getInt(entry + 8));
+        try {
+            int actionCount = BinaryRecordCodec.readVarInt(b);
+            List<T> actions = new ArrayList<T>(actionCount);
+            for (int i = 0; i < actionCount; i++) {
+                String className = strings[BinaryRecordCodec.readVarInt(b)];
+                byte[] data = new byte[BinaryRecordCodec.readVarInt(b)];
+                b.get(data);
+                T a = SegmentedFlowNodeStorage.decodeAction(codec, className, data, type, node, file);
+                if (a != null) {
+                    actions.add(a);
+                }
+            }
+            return actions;
+        } catch (BufferUnderflowException x) {
+            throw (IOException) new EOFException("actions of " + node.getId() + " in " + file + " are truncated").initCause(x);
+        }
+    }
+
+    @Override
+    public void storeNode(FlowNode n) throws IOException {
+        throw new IOException(file + " is read-only");
+    }
+
+    @Override
+    public void saveActions(FlowNode node, List<Action> actions) throws IOException {
+        throw new IOException(file + " is read-only");
+    }
+
+    /**
+     * Marks the pack in use by a caller which may {@link #close} it from another thread.
+     * Each successful call must be followed by {@link #release}.
+     * @return false if it has been closed
+     */
+    synchronized boolean lease() {
+        if (closing) {
+            return false;
+        }
+        leases++;
+        return true;
+    }
+
+    void release() {
+        synchronized (this) {
+            if (--leases > 0 || !closing) {
+                return;
+            }
+        }
+        unmap();
+    }
+
+    /**
+     * Unmaps the file right away rather than whenever the buffer is collected,
+     * since Windows does not let a mapped file be deleted or replaced.
+     * If it is {@linkplain #lease leased}, that happens once the last lease is released.
+     * This storage must not be used afterwards, except by current leases.
+     */
+    void close() {
+        synchronized (this) {
+            if (closing) {
+                return;
+            }
+            closing = true;
+            if (leases > 0) {
+                return;
+            }
+        }
+        unmap();
+    }
+
+    /**
+     * Best effort: it relies on JDK internals, and otherwise the mapping is only released by garbage collection.
+     */
+    private void unmap() {
+        try {
+            Method cleaner = buffer.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object c = cleaner.invoke(buffer);
+            if (c != null) {
+                Method clean = c.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(c);
+            }
+        } catch (Exception x) {
+            LOGGER.log(Level.FINE, "could not unmap " + file, x);
+        }
+    }
+
+    /**
+     * Binary search of the offset table.
+     * @return the absolute position of the table entry, or -1
+     */
+    private int find(String id) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int pos = table + mid * TABLE_ENTRY_SIZE;
+            int c = NodeIdIndex.ORDER.compare(strings[buffer.getInt(pos)], id);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    private byte[] bytes(int offset, int length) {
+        byte[] data = new byte[length];
+        ByteBuffer b = buffer.duplicate();
+        b.position(offset);
+        b.get(data);
+        return data;
+    }
+
+    private static String readUTF(ByteBuffer b) throws IOException {
+        byte[] data = new byte[b.getShort() & 0xFFFF];
+        b.get(data);
+        return new String(data, "UTF-8");
+    }
+
+    /**
+     * Writes a new pack.
+     * Nodes may be added in any order.
+     */
+    static final class Writer {
+
+        private final File file;
+        private final FlowNodeRecordCodec codec;
+        private final RandomAccessFile raf;
+        private final Map<String,Integer> stringIds = new HashMap<String,Integer>();
+        private final List<String> strings = new ArrayList<String>();
+        /** id → {offset, node length, record length, CRC-32} */
+        private final Map<String,int[]> entries = new TreeMap<String,int[]>(NodeIdIndex.ORDER);
+
+        Writer(File file, FlowNodeRecordCodec codec) throws IOException {
+            this.file = file;
+            this.codec = codec;
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            raf.seek(HEADER_SIZE);
+        }
+
+        void add(FlowNode node, List<Action> actions) throws IOException {
+            String id = node.getId();
+            if (entries.containsKey(id)) {
+                throw new IOException("duplicate node " + id + " in " + file);
+            }
+            byte[] nodeData;
+            ByteArrayOutputStream baos;
+            try {
+                nodeData = codec.encodeNode(node);
+                baos = new ByteArrayOutputStream(nodeData.length + 64);
+                DataOutputStream out = new DataOutputStream(baos);
+                out.write(nodeData);
+                BinaryRecordCodec.writeVarInt(out, actions.size());
+                for (Action a : actions) {
+                    String className;
+                    byte[] data;
+                    if (a instanceof UnreadableAction) { // carried over from an older pack as loaded
+                        UnreadableAction u = (UnreadableAction) a;
+                        if (u.codecId != codec.getId()) {
+                            throw new IOException("cannot repack " + u + " from codec " + u.codecId + " as " + codec.getId());
+                        }
+                        className = u.className;
+                        data = u.data;
+                    } else {
+                        className = SimpleXStreamFlowNodeStorage.XSTREAM.getMapper().serializedClass(a.getClass());
+                        data = codec.encodeAction(a);
+                    }
+                    BinaryRecordCodec.writeVarInt(out, string(className));
+                    BinaryRecordCodec.writeVarInt(out, data.length);
+                    out.write(data);
+                }
+                out.flush();
+            } catch (IOException x) {
+                throw new EncodingException(id, x);
+            } catch (RuntimeException x) {
+                throw new EncodingException(id, x);
+            }
+            byte[] record = baos.toByteArray();
+            long offset = raf.getFilePointer();
+            if (offset + record.length > Integer.MAX_VALUE) {
+                throw new IOException(file + " would be too large");
+            }
+            raf.write(record);
+            string(id);
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            entries.put(id, new int[] {(int) offset, nodeData.length, record.length, (int) crc.getValue()});
+        }
+
+        /**
+         * Writes the string and offset tables and the header, then closes the file.
+         */
+        void close() throws IOException {
+            try {
+                long stringsOffset = raf.getFilePointer();
+                for (String s : strings) {
+                    raf.writeUTF(s);
+                }
+                long tableOffset = raf.getFilePointer();
+                if (tableOffset + (long) entries.size() * TABLE_ENTRY_SIZE > Integer.MAX_VALUE) {
+                    throw new IOException(file + " would be too large");
+                }
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(entries.size() * TABLE_ENTRY_SIZE);
+                DataOutputStream out = new DataOutputStream(baos);
+                for (Map.Entry<String,int[]> e : entries.entrySet()) {
+                    out.writeInt(stringIds.get(e.getKey()));
+                    for (int field : e.getValue()) {
+                        out.writeInt(field);
+                    }
+                }
+                out.flush();
+                raf.write(baos.toByteArray());
+                raf.seek(0);
+                raf.writeLong(MAGIC);
+                raf.writeShort(VERSION);
+                raf.writeByte(codec.getId());
+                raf.writeInt(entries.size());
+                raf.writeInt(strings.size());
+                raf.writeInt((int) stringsOffset);
+                raf.writeInt((int) tableOffset);
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+        }
+
+        private int string(String s) {
+            Integer i = stringIds.get(s);
+            if (i == null) {
+                i = strings.size();
+                strings.add(s);
+                stringIds.put(s, i);
+            }
+            return i;
+        }
+
+    }
+
+    /**
+     * Thrown by {@link Writer#add} when a node or one of its actions cannot be encoded.
+     * Nothing was written, so the pack may still be completed without that node.
+     */
+    static final class EncodingException extends IOException {
+        EncodingException(String id, Throwable cause) {
+            super("could not encode node " + id, cause);
+        }
+    }
+
+    /*constant*/ static final long MAGIC = 0x466c6f775061636bL; // "FlowPack"
+    /*constant*/ static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8 + 2 + 1 + 4 + 4 + 4 + 4;
+    /**
+     * String index of the id, offset of the record, length of the node, length of the record, and CRC-32 of the record.
+     * A record is the node followed by its actions.
+     */
+    private static final int TABLE_ENTRY_SIZE = 4 + 4 + 4 + 4 + 4;
+}
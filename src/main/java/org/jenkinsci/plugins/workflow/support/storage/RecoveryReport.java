@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+
+/**
+ * Outcome of the scan a storage runs over its files after a possible crash:
+ * how many records were checked and which ones were found damaged and dropped.
+ */
+public final class RecoveryReport {
+
+    private final File dir;
+    private final long started = System.nanoTime();
+    private long elapsed;
+    private int checked;
+    private long truncated;
+    private final List<String> problems = new ArrayList<String>();
+
+    RecoveryReport(File dir) {
+        this.dir = dir;
+    }
+
+    synchronized void checked() {
+        checked++;
+    }
+
+    synchronized void problem(String problem) {
+        problems.add(problem);
+    }
+
+    synchronized void truncated(long bytes) {
+        truncated += bytes;
+    }
+
+    synchronized void done() {
+        elapsed = System.nanoTime() - started;
+    }
+
+    public @Nonnull File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Number of records found intact.
+     */
+    public synchronized int getCheckedCount() {
+        return checked;
+    }
+
+    /**
+     * Number of bytes cut off damaged or incomplete tails.
+     */
+    public synchronized long getTruncatedBytes() {
+        return truncated;
+    }
+
+    /**
+     * Descriptions of each damaged record or file, empty if none.
+     */
+    public synchronized @Nonnull List<String> getProblems() {
+        return Collections.unmodifiableList(new ArrayList<String>(problems));
+    }
+
+    public synchronized boolean isClean() {
+        return problems.isEmpty();
+    }
+
+    public synchronized long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(elapsed);
+    }
+
+    @Override public synchronized String toString() {
+        StringBuilder b = new StringBuilder("checked ").append(checked).append(" records in ").append(dir)
+                .append(" in ").append(getElapsedMillis()).append("ms");
+        if (problems.isEmpty()) {
+            return b.append(", all intact").toString();
+        }
+        b.append(", dropped ").append(truncated).append(" bytes:");
+        for (String problem : problems) {
+            b.append("\n  ").append(problem);
+        }
+        return b.toString();
+    }
+
+}
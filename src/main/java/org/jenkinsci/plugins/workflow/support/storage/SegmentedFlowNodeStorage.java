@@ -0,0 +1,890 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import com.thoughtworks.xstream.mapper.CannotResolveClassException;
+import hudson.model.Action;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.workflow.actions.FlowNodeAction;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.BlockEndNode;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
+import org.jenkinsci.plugins.workflow.graph.FlowEndNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+/**
+ * {@link FlowNodeStorage} that appends node and action records to a handful of segment files
+ * rather than creating one file per node.
+ *
+ * <p>
+ * A node and its actions are stored as separate records, each serialized by a {@link FlowNodeRecordCodec},
+ * so that {@link #getNode} never deserializes actions.
+ * Within an actions record every action is encoded on its own, prefixed by its class name,
+ * so that {@link #loadActions(FlowNode, Class)} can skip the others.
+ * A later record of the same kind for the same id supersedes any earlier one.
+ * {@link #saveActions} usually appends only a delta adding, replacing or removing individual actions;
+ * the full list is written again after {@link #DELTA_THRESHOLD} deltas, and for every such node once the flow completes.
+ * By default strings are dictionary encoded: each distinct string is written once per execution,
+ * and all nodes and actions loaded from the same storage share one instance of it.
+ * The id→location indices and the string table are kept in memory and rebuilt on first use by a sequential scan of the segments,
+ * which verifies the CRC-32 carried by every record and truncates whatever a crash left half written,
+ * but decodes only record headers and strings.
+ *
+ * <p>
+ * Records are always written through to the operating system as they are appended, since reads are served from the segments.
+ * The {@link StorageDurability} of the build decides when they are forced to disk:
+ * at every block boundary and {@link #flush} for {@link StorageDurability#MAXIMUM},
+ * at {@link #flush} for {@link StorageDurability#PERFORMANCE}, and only once the flow completes for {@link StorageDurability#NONE}.
+ */
+public class SegmentedFlowNodeStorage extends FlowNodeStorage {
+
+    private static final Logger LOGGER = Logger.getLogger(SegmentedFlowNodeStorage.class.getName());
+
+    /**
+     * Size after which we stop appending to a segment and start a new one.
+     */
+    static long MAX_SEGMENT_SIZE = Long.getLong(SegmentedFlowNodeStorage.class.getName() + ".maxSegmentSize", 64 * 1024 * 1024);
+
+    /**
+     * Number of action deltas of one node after which the next save writes its full action list again.
+     */
+    static int DELTA_THRESHOLD = Integer.getInteger(SegmentedFlowNodeStorage.class.getName() + ".deltaThreshold", 16);
+
+    private static final int RECENT_SIZE = 64;
+
+    private final File dir;
+    private final FlowExecution exec;
+    /** Strings shared by records of {@link #dictionary}, loaded by {@link #index()}. */
+    private final StringTable strings = new StringTable();
+    private final BinaryRecordCodec dictionary = new BinaryRecordCodec(strings);
+    /** Used for new records; existing records are read with whichever codec wrote them. */
+    private final FlowNodeRecordCodec codec;
+    private final StructureIndex structure;
+    private final FlowNodeCache.Scope cacheScope;
+
+    /**
+     * Node id to location of its latest {@link #NODE} record; see {@link #location(int, long)}.
+     * Null until {@link #index()} has scanned the segments.
+     */
+    private NodeIdIndex nodes;
+    /** Like {@link #nodes} but for {@link #ACTIONS} records. */
+    private NodeIdIndex actionIndex;
+    /** Locations of {@link #DELTA} records written after the latest {@link #ACTIONS} record of a node, oldest first. */
+    private final Map<String,List<Long>> deltas = new HashMap<String,List<Long>>();
+    /** Action entries of recently saved nodes, sparing a read when computing the next delta. */
+    private final Map<String,List<Entry>> recent = new LinkedHashMap<String,List<Entry>>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String,List<Entry>> eldest) {
+            return size() > RECENT_SIZE;
+        }
+    };
+    /** Number of the segment currently being appended to. */
+    private int segment;
+    /** Open only while the execution is writing. */
+    private @CheckForNull RandomAccessFile writer;
+    /** Set by {@link #index()}. */
+    private @CheckForNull RecoveryReport report;
+    /** Null until first needed, since looking it up during construction could recursively load the build. */
+    private volatile StorageDurability durability;
+
+
+    /**
+     * Uses {@link BinaryRecordCodec} with strings shared across the execution.
+     */
+    public SegmentedFlowNodeStorage(FlowExecution exec, File dir) {
+        this(exec, dir, null);
+    }
+
+    /**
+     * @param codec the codec for new records, or null for the default
+     */
+    public SegmentedFlowNodeStorage(FlowExecution exec, File dir, @CheckForNull FlowNodeRecordCodec codec) {
+        this.exec = exec;
+        this.dir = dir;
+        this.codec = codec != null ? codec : dictionary;
+        this.structure = new StructureIndex(dir);
+        this.cacheScope = FlowNodeCache.get().scope(dir);
+    }
+
+    /**
+     * @param durability overrides the durability configured for the job
+     */
+    public SegmentedFlowNodeStorage(FlowExecution exec, File dir, @CheckForNull FlowNodeRecordCodec codec, @Nonnull StorageDurability durability) {
+        this(exec, dir, codec);
+        this.durability = durability;
+    }
+
+    private @Nonnull StorageDurability durability() {
+        StorageDurability d = durability;
+        if (d == null) {
+            durability = d = StorageDurability.forExecution(exec);
+        }
+        return d;
+    }
+
+    @Override
+    public FlowNode getNode(String id) throws IOException {
+        FlowNode n = FlowNodeCache.get().get(cacheScope, id);
+        getStatistics().cache(n != null);
+        if (n != null) {
+            return n;
+        }
+        long loc = location(NODE, id);
+        if (loc == NodeIdIndex.ABSENT) {
+            return null;
+        }
+        long start = System.nanoTime();
+        Record r = read(loc, NODE, id);
+        return FlowNodeCache.get().loaded(cacheScope, decodeNode(r), System.nanoTime() - start);
+    }
+
+    @Override
+    public void storeNode(FlowNode n) throws IOException {
+        FlowNodeCache.get().put(cacheScope, n);
+        structure.add(n);
+        synchronized (this) {
+            if (!index().contains(n.getId())) {
+                append(NODE, n.getId(), codec.encodeNode(n));
+            }
+        }
+        if (n instanceof FlowEndNode) {
+            compact();
+            sync();
+            closeWriter();
+            structure.close();
+        } else if ((n instanceof BlockStartNode || n instanceof BlockEndNode) && durability() == StorageDurability.MAXIMUM) {
+            sync();
+        }
+    }
+
+    @Override
+    public FlowNodeStructure getStructure(String id) throws IOException {
+        FlowNodeStructure s = structure.get(id);
+        return s != null ? s : super.getStructure(id);
+    }
+
+    /**
+     * Forces the segment being appended to onto disk, unless the durability of the build is {@link StorageDurability#NONE}.
+     */
+    @Override
+    public void flush() throws IOException {
+        structure.flush();
+        if (durability() != StorageDurability.NONE) {
+            sync();
+        }
+    }
+
+    private synchronized void sync() throws IOException {
+        if (writer != null) {
+            writer.getFD().sync();
+        }
+    }
+
+    @Override
+    public List<Action> loadActions(FlowNode node) throws IOException {
+        return loadActions(node, Action.class);
+    }
+
+    /**
+     * Deserializes only those actions whose recorded class is assignable to the given type.
+     */
+    @Override
+    public <T extends Action> List<T> loadActions(FlowNode node, Class<T> type) throws IOException {
+        String id = node.getId();
+        List<Entry> entries = entries(id);
+        List<T> result = new ArrayList<T>(entries.size());
+        for (Entry e : entries) {
+            T a = decodeAction(e.codec, e.className, e.data, type, node, dir);
+            if (a != null) {
+                result.add(a);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Deserializes one stored action if its recorded class could be of the requested type.
+     * Failures are logged. When loading all actions, the record is then kept as an {@link UnreadableAction},
+     * so that saving the list again preserves it; otherwise the action is skipped.
+     */
+    static @CheckForNull <T extends Action> T decodeAction(FlowNodeRecordCodec codec, String className, byte[] data, Class<T> type, FlowNode node, File dir) {
+        if (type != Action.class) {
+            Class<?> c;
+            try {
+                c = SimpleXStreamFlowNodeStorage.XSTREAM.getMapper().realClass(className);
+            } catch (CannotResolveClassException x) {
+                return null; // cannot be of the requested type anyway
+            }
+            if (!type.isAssignableFrom(c)) {
+                return null;
+            }
+        }
+        Action a;
+        try {
+            a = codec.decodeAction(data);
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "failed to load " + className + " of flow node " + node.getId() + " in " + dir, x);
+            a = new UnreadableAction(codec, className, data);
+        } catch (RuntimeException x) {
+            LOGGER.log(Level.WARNING, "failed to load " + className + " of flow node " + node.getId() + " in " + dir, x);
+            a = new UnreadableAction(codec, className, data);
+        }
+        if (a instanceof UnreadableAction && type != Action.class) {
+            return null;
+        }
+        if (!type.isInstance(a)) {
+            return null;
+        }
+        if (a instanceof FlowNodeAction) {
+            ((FlowNodeAction) a).onLoad(node);
+        }
+        return type.cast(a);
+    }
+
+    /**
+     * Appends only the difference from the previously saved list, unless a full record is due anyway.
+     */
+    @Override
+    public void saveActions(FlowNode node, List<Action> actions) throws IOException {
+        index(); // loads the string table before encoding anything
+        String id = node.getId();
+        List<Entry> updated = new ArrayList<Entry>(actions.size());
+        for (Action a : actions) {
+            if (a instanceof UnreadableAction) {
+                UnreadableAction u = (UnreadableAction) a;
+                FlowNodeRecordCodec c = u.codec();
+                if (c == null) {
+                    throw new IOException("unknown codec " + u.codecId + " of " + u);
+                }
+                updated.add(new Entry(c, u.className, u.data));
+            } else {
+                updated.add(new Entry(codec, SimpleXStreamFlowNodeStorage.XSTREAM.getMapper().serializedClass(a.getClass()), codec.encodeAction(a)));
+            }
+        }
+        updated = Collections.unmodifiableList(updated);
+        synchronized (this) {
+            if (!index().contains(id)) {
+                append(NODE, id, codec.encodeNode(node));
+            }
+            List<Long> chain = deltas.get(id);
+            if (actionIndex.contains(id) && (chain == null || chain.size() < DELTA_THRESHOLD)) {
+                List<Op> ops = diff(entries(id), updated);
+                if (ops.isEmpty()) {
+                    return; // nothing changed
+                }
+                byte[] delta = encodeDelta(ops);
+                byte[] full = encodeEntries(updated);
+                if (delta.length < full.length) {
+                    append(DELTA, id, delta);
+                } else {
+                    append(ACTIONS, id, full);
+                }
+            } else {
+                append(ACTIONS, id, encodeEntries(updated));
+            }
+            recent.put(id, updated);
+        }
+    }
+
+    /**
+     * Current action entries of a node: its latest {@link #ACTIONS} record with any later {@link #DELTA} records applied.
+     */
+    private @Nonnull List<Entry> entries(String id) throws IOException {
+        long base;
+        List<Long> chain;
+        synchronized (this) {
+            List<Entry> e = recent.get(id);
+            if (e != null) {
+                return e;
+            }
+            index();
+            base = actionIndex.get(id);
+            chain = deltas.containsKey(id) ? new ArrayList<Long>(deltas.get(id)) : Collections.<Long>emptyList();
+        }
+        if (base == NodeIdIndex.ABSENT) {
+            return Collections.emptyList(); // not yet saved
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(read(base, ACTIONS, id).payload));
+        int count = BinaryRecordCodec.readVarInt(in);
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(readEntry(in));
+        }
+        for (long loc : chain) {
+            in = new DataInputStream(new ByteArrayInputStream(read(loc, DELTA, id).payload));
+            int ops = BinaryRecordCodec.readVarInt(in);
+            for (int i = 0; i < ops; i++) {
+                byte op = in.readByte();
+                int index = BinaryRecordCodec.readVarInt(in);
+                if (index < 0 || index > entries.size() || index == entries.size() && op != ADD) {
+                    throw new IOException("invalid delta of actions of " + id + " at " + offsetOf(loc) + " in " + segmentFile(segmentOf(loc)));
+                }
+                switch (op) {
+                case ADD:
+                    entries.add(index, readEntry(in));
+                    break;
+                case REPLACE:
+                    entries.set(index, readEntry(in));
+                    break;
+                case REMOVE:
+                    entries.remove(index);
+                    break;
+                default:
+                    throw new IOException("unknown delta operation " + op + " for " + id + " in " + segmentFile(segmentOf(loc)));
+                }
+            }
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Computes positional edits turning one list into another.
+     * Appending or updating actions in place, the common cases, produce one operation per affected action.
+     */
+    private static List<Op> diff(List<Entry> from, List<Entry> to) {
+        List<Op> ops = new ArrayList<Op>();
+        int common = Math.min(from.size(), to.size());
+        for (int i = 0; i < common; i++) {
+            if (!from.get(i).equals(to.get(i))) {
+                ops.add(new Op(REPLACE, i, to.get(i)));
+            }
+        }
+        for (int i = common; i < to.size(); i++) {
+            ops.add(new Op(ADD, i, to.get(i)));
+        }
+        for (int i = from.size() - 1; i >= common; i--) {
+            ops.add(new Op(REMOVE, i, null));
+        }
+        return ops;
+    }
+
+    private static byte[] encodeDelta(List<Op> ops) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        BinaryRecordCodec.writeVarInt(out, ops.size());
+        for (Op op : ops) {
+            out.writeByte(op.type);
+            BinaryRecordCodec.writeVarInt(out, op.index);
+            if (op.entry != null) {
+                writeEntry(out, op.entry);
+            }
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    private static byte[] encodeEntries(List<Entry> entries) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        BinaryRecordCodec.writeVarInt(out, entries.size());
+        for (Entry e : entries) {
+            writeEntry(out, e);
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry e) throws IOException {
+        out.writeByte(e.codec.getId());
+        out.writeUTF(e.className);
+        BinaryRecordCodec.writeVarInt(out, e.data.length);
+        out.write(e.data);
+    }
+
+    private Entry readEntry(DataInputStream in) throws IOException {
+        byte codecId = in.readByte();
+        FlowNodeRecordCodec entryCodec = codecFor(codecId);
+        if (entryCodec == null) {
+            throw new IOException("unknown codec " + codecId + " for an action in " + dir);
+        }
+        String className = in.readUTF();
+        byte[] data = new byte[BinaryRecordCodec.readVarInt(in)];
+        in.readFully(data);
+        return new Entry(entryCodec, className, data);
+    }
+
+    /**
+     * Rewrites the action list of every node with pending deltas as one full record,
+     * so that a completed build never needs to replay deltas.
+     */
+    private synchronized void compact() throws IOException {
+        index();
+        for (String id : new ArrayList<String>(deltas.keySet())) {
+            append(ACTIONS, id, encodeEntries(entries(id)));
+        }
+    }
+
+    private synchronized long location(byte kind, String id) throws IOException {
+        index();
+        return (kind == NODE ? nodes : actionIndex).get(id);
+    }
+
+    private Record read(long loc, byte kind, String id) throws IOException {
+        File f = segmentFile(segmentOf(loc));
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            return read(raf, f, kind, id, offsetOf(loc));
+        } finally {
+            raf.close();
+        }
+    }
+
+    private Record read(RandomAccessFile raf, File f, byte kind, String id, long offset) throws IOException {
+        long start = System.nanoTime();
+        raf.seek(offset);
+        int length = raf.readInt();
+        int checksum = raf.readInt();
+        byte[] body = new byte[length];
+        raf.readFully(body);
+        if (checksum(body) != checksum) {
+            throw new IOException("checksum mismatch in record for " + id + " at " + offset + " in " + f);
+        }
+        getStatistics().read(System.nanoTime() - start, RECORD_HEADER_SIZE + length);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte recordKind = in.readByte();
+        String recordId = in.readUTF();
+        if (recordKind != kind || !recordId.equals(id)) {
+            throw new IOException("expected a record of kind " + kind + " for " + id + " at " + offset + " in " + f + " but found kind " + recordKind + " for " + recordId);
+        }
+        return record(in, id, f);
+    }
+
+    private Record record(DataInputStream in, String id, File f) throws IOException {
+        byte codecId = in.readByte();
+        FlowNodeRecordCodec recordCodec = codecFor(codecId);
+        if (recordCodec == null) {
+            throw new IOException("unknown codec " + codecId + " for record " + id + " in " + f);
+        }
+        byte[] payload = new byte[in.available()];
+        in.readFully(payload);
+        return new Record(recordCodec, payload);
+    }
+
+    private FlowNode decodeNode(Record r) throws IOException {
+        FlowNode node = r.codec.decodeNode(r.payload);
+        SimpleXStreamFlowNodeStorage.setExecution(node, exec);
+        return node;
+    }
+
+    /**
+     * Reads all cache misses in one forward pass over each segment involved.
+     */
+    @Override
+    public Map<String,FlowNode> getNodes(Collection<String> ids) throws IOException {
+        Map<String,FlowNode> result = new LinkedHashMap<String,FlowNode>();
+        final Map<String,Long> misses = new HashMap<String,Long>();
+        synchronized (this) {
+            for (String id : ids) {
+                FlowNode n = FlowNodeCache.get().get(cacheScope, id);
+                getStatistics().cache(n != null);
+                long loc = n == null ? index().get(id) : NodeIdIndex.ABSENT;
+                if (n != null || loc != NodeIdIndex.ABSENT) {
+                    result.put(id, n); // fixes the iteration order even for misses
+                }
+                if (loc != NodeIdIndex.ABSENT) {
+                    misses.put(id, loc);
+                }
+            }
+        }
+        List<String> order = new ArrayList<String>(misses.keySet());
+        Collections.sort(order, new Comparator<String>() {
+            @Override public int compare(String a, String b) {
+                long x = misses.get(a);
+                long y = misses.get(b);
+                return x < y ? -1 : x == y ? 0 : 1;
+            }
+        });
+        RandomAccessFile raf = null;
+        int open = -1;
+        try {
+            for (String id : order) {
+                long loc = misses.get(id);
+                if (segmentOf(loc) != open) {
+                    if (raf != null) {
+                        raf.close();
+                    }
+                    open = segmentOf(loc);
+                    raf = new RandomAccessFile(segmentFile(open), "r");
+                }
+                long start = System.nanoTime();
+                Record r = read(raf, segmentFile(open), NODE, id, offsetOf(loc));
+                result.put(id, FlowNodeCache.get().loaded(cacheScope, decodeNode(r), System.nanoTime() - start));
+            }
+        } finally {
+            if (raf != null) {
+                raf.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes one record at the end of the current segment,
+     * preceded by any strings it might refer to which have not yet been written.
+     */
+    private void append(byte kind, String id, byte[] payload) throws IOException {
+        assert Thread.holdsLock(this);
+        int first = strings.persisted();
+        List<String> added = strings.unpersisted();
+        if (!added.isEmpty()) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            BinaryRecordCodec.writeVarInt(out, first);
+            BinaryRecordCodec.writeVarInt(out, added.size());
+            for (String string : added) {
+                BinaryRecordCodec.writeString(out, string);
+            }
+            out.flush();
+            appendRecord(STRINGS, "", baos.toByteArray());
+            strings.markPersisted(first + added.size());
+        }
+        appendRecord(kind, id, payload);
+    }
+
+    private void appendRecord(byte kind, String id, byte[] payload) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(payload.length + 16);
+        DataOutputStream dos = new DataOutputStream(body);
+        dos.writeByte(kind);
+        dos.writeUTF(id);
+        dos.writeByte(codec.getId());
+        dos.write(payload);
+        dos.flush();
+        byte[] b = body.toByteArray();
+        ByteArrayOutputStream rec = new ByteArrayOutputStream(b.length + RECORD_HEADER_SIZE);
+        dos = new DataOutputStream(rec);
+        dos.writeInt(b.length);
+        dos.writeInt(checksum(b));
+        dos.write(b);
+        dos.flush();
+        byte[] record = rec.toByteArray();
+
+        RandomAccessFile raf = writer();
+        long offset = raf.length();
+        if (offset > HEADER_SIZE && offset + record.length > MAX_SEGMENT_SIZE) {
+            closeWriter();
+            segment++;
+            raf = writer();
+            offset = raf.length();
+        }
+        long start = System.nanoTime();
+        raf.seek(offset);
+        raf.write(record);
+        getStatistics().written(System.nanoTime() - start, record.length);
+        track(kind, id, location(segment, offset), nodes, actionIndex, deltas);
+    }
+
+    private synchronized RandomAccessFile writer() throws IOException {
+        index();
+        if (writer == null) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("could not create " + dir);
+            }
+            RandomAccessFile raf = new RandomAccessFile(segmentFile(segment), "rw");
+            if (raf.length() == 0) {
+                raf.writeLong(MAGIC);
+                raf.writeShort(VERSION);
+            }
+            writer = raf;
+        }
+        return writer;
+    }
+
+    private synchronized void closeWriter() throws IOException {
+        if (writer != null) {
+            try {
+                writer.close();
+            } finally {
+                writer = null;
+            }
+        }
+    }
+
+    /**
+     * Lazily scans all segments to find the latest records of each node.
+     * @return the index of {@link #NODE} records
+     */
+    private synchronized NodeIdIndex index() throws IOException {
+        if (nodes == null) {
+            NodeIdIndex n = new NodeIdIndex();
+            NodeIdIndex a = new NodeIdIndex();
+            RecoveryReport r = new RecoveryReport(dir);
+            int s = 0;
+            while (segmentFile(s).isFile()) {
+                scan(s, n, a, r);
+                s++;
+            }
+            r.done();
+            if (!r.isClean()) {
+                LOGGER.log(Level.WARNING, "recovered flow node storage: {0}", r);
+            } else if (s > 0) {
+                LOGGER.log(Level.FINE, "{0}", r);
+            }
+            report = r;
+            segment = Math.max(0, s - 1);
+            actionIndex = a;
+            nodes = n;
+        }
+        return nodes;
+    }
+
+    /**
+     * Reads a segment front to back, verifying the checksum of every record without decoding it.
+     * The segment is truncated at the first record which is incomplete or damaged,
+     * as left behind by a crash in the middle of an append; no later record could be located reliably anyway.
+     */
+    private void scan(int s, NodeIdIndex n, NodeIdIndex a, RecoveryReport r) throws IOException {
+        File f = segmentFile(s);
+        long end = f.length();
+        long offset = 0;
+        String problem = null;
+        if (end > 0) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 64 * 1024));
+            try {
+                if (end < HEADER_SIZE) {
+                    problem = "incomplete header";
+                } else {
+                    if (in.readLong() != MAGIC) {
+                        throw new IOException(f + " is not a flow node segment");
+                    }
+                    int version = in.readShort();
+                    if (version != VERSION) {
+                        throw new IOException("unsupported version " + version + " of " + f);
+                    }
+                    offset = HEADER_SIZE;
+                }
+                while (problem == null && offset < end) {
+                    if (end - offset < RECORD_HEADER_SIZE) {
+                        problem = "incomplete record header";
+                        break;
+                    }
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length <= 0 || offset + RECORD_HEADER_SIZE + length > end) {
+                        problem = "incomplete record";
+                        break;
+                    }
+                    byte[] body = new byte[length];
+                    in.readFully(body);
+                    if (checksum(body) != checksum) {
+                        problem = "checksum mismatch";
+                        break;
+                    }
+                    DataInputStream rec = new DataInputStream(new ByteArrayInputStream(body));
+                    byte kind = rec.readByte();
+                    String id = rec.readUTF();
+                    if (kind == STRINGS) {
+                        loadStrings(record(rec, id, f).payload);
+                    } else if (!track(kind, id, location(s, offset), n, a, deltas)) {
+                        LOGGER.log(Level.WARNING, "ignoring record of unknown kind {0} at {1} in {2}", new Object[] {kind, offset, f});
+                    }
+                    r.checked();
+                    offset += RECORD_HEADER_SIZE + length;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        if (problem != null) {
+            r.problem(problem + " at " + offset + " in " + f + "; dropped " + (end - offset) + " bytes");
+            r.truncated(end - offset);
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            try {
+                raf.setLength(offset);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Result of the scan of the segments, or null if it has not yet run.
+     */
+    public synchronized @CheckForNull RecoveryReport getRecoveryReport() {
+        return report;
+    }
+
+    private static int checksum(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Records the location of a record in the appropriate index.
+     * @return false if the kind is unknown
+     */
+    private static boolean track(byte kind, String id, long location, NodeIdIndex n, NodeIdIndex a, Map<String,List<Long>> d) {
+        switch (kind) {
+        case NODE:
+            n.put(id, location);
+            return true;
+        case ACTIONS:
+            a.put(id, location);
+            d.remove(id);
+            return true;
+        case DELTA:
+            List<Long> chain = d.get(id);
+            if (chain == null) {
+                chain = new ArrayList<Long>();
+                d.put(id, chain);
+            }
+            chain.add(location);
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private void loadStrings(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int first = BinaryRecordCodec.readVarInt(in);
+        int count = BinaryRecordCodec.readVarInt(in);
+        List<String> loaded = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            loaded.add(BinaryRecordCodec.readString(in));
+        }
+        strings.load(first, loaded);
+    }
+
+    private @CheckForNull FlowNodeRecordCodec codecFor(byte id) {
+        if (id == codec.getId()) {
+            return codec;
+        }
+        return id == dictionary.getId() ? dictionary : FlowNodeRecordCodec.forId(id);
+    }
+
+    @Override public String toString() {
+        return "SegmentedFlowNodeStorage[" + dir + "]";
+    }
+
+    File segmentFile(int s) {
+        return new File(dir, SEGMENT_PREFIX + s + SEGMENT_SUFFIX);
+    }
+
+    private static long location(int segment, long offset) {
+        return ((long) segment << OFFSET_BITS) | offset;
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> OFFSET_BITS);
+    }
+
+    private static long offsetOf(long location) {
+        return location & ((1L << OFFSET_BITS) - 1);
+    }
+
+    /**
+     * Payload of a record together with the codec which wrote it.
+     */
+    private static final class Record {
+        final FlowNodeRecordCodec codec;
+        final byte[] payload;
+        Record(FlowNodeRecordCodec codec, byte[] payload) {
+            this.codec = codec;
+            this.payload = payload;
+        }
+    }
+
+    /** Record kind holding a node without its actions. */
+    private static final byte NODE = 1;
+    /** Record kind holding the complete action list of a node. */
+    private static final byte ACTIONS = 2;
+    /** Record kind holding edits to the action list of a node since its last {@link #ACTIONS} record. */
+    private static final byte DELTA = 3;
+    /** Record kind holding strings newly added to the {@link StringTable}. */
+    private static final byte STRINGS = 4;
+
+    /** Delta operation inserting an action. */
+    private static final byte ADD = 1;
+    /** Delta operation overwriting an action. */
+    private static final byte REPLACE = 2;
+    /** Delta operation dropping an action. */
+    private static final byte REMOVE = 3;
+
+    /**
+     * One serialized action as stored in {@link #ACTIONS} and {@link #DELTA} records.
+     */
+    private static final class Entry {
+        final FlowNodeRecordCodec codec;
+        final String className;
+        final byte[] data;
+        Entry(FlowNodeRecordCodec codec, String className, byte[] data) {
+            this.codec = codec;
+            this.className = className;
+            this.data = data;
+        }
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry e = (Entry) o;
+            return codec.getId() == e.codec.getId() && className.equals(e.className) && Arrays.equals(data, e.data);
+        }
+        @Override public int hashCode() {
+            return Arrays.hashCode(data);
+        }
+    }
+
+    private static final class Op {
+        final byte type;
+        final int index;
+        final @CheckForNull Entry entry;
+        Op(byte type, int index, Entry entry) {
+            this.type = type;
+            this.index = index;
+            this.entry = entry;
+        }
+    }
+
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".log";
+    private static final int OFFSET_BITS = 40;
+    /*constant*/ static final long MAGIC = 0x466c6f774e6f6465L; // "FlowNode"
+    /*constant*/ static final int VERSION = 4;
+    private static final int HEADER_SIZE = 8 + 2;
+    /** Length and CRC-32 of the body of a record. */
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+}
@@ -24,116 +24,1038 @@
 
 package org.jenkinsci.plugins.workflow.support.storage;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.base.Charsets;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.thoughtworks.xstream.XStreamException;
 import com.thoughtworks.xstream.converters.Converter;
 import com.thoughtworks.xstream.converters.MarshallingContext;
 import com.thoughtworks.xstream.converters.UnmarshallingContext;
 import com.thoughtworks.xstream.core.JVM;
+import com.thoughtworks.xstream.core.util.HierarchicalStreams;
 import com.thoughtworks.xstream.io.HierarchicalStreamReader;
 import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.xml.XppDriver;
+import com.thoughtworks.xstream.mapper.CannotResolveClassException;
+import com.thoughtworks.xstream.mapper.Mapper;
 import org.jenkinsci.plugins.workflow.flow.FlowExecution;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.jenkinsci.plugins.workflow.actions.FlowNodeAction;
 import hudson.Util;
 import hudson.XmlFile;
 import hudson.model.Action;
+import hudson.util.AtomicFileWriter;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.RobustReflectionConverter;
 import hudson.util.XStream2;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import jenkins.util.NamingThreadFactory;
+import org.jenkinsci.plugins.workflow.graph.BlockEndNode;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
+import org.jenkinsci.plugins.workflow.graph.FlowEndNode;
+import org.jenkinsci.plugins.workflow.support.concurrent.Futures;
 
 /**
  * {@link FlowNodeStorage} that stores one node per one file.
  *
+ * <p>
+ * In write-behind mode, {@link #storeNode} and {@link #saveActions} only record the latest state of each node in memory.
+ * Those writes are coalesced and persisted in batches by a background thread, or synchronously by {@link #flush}.
+ * Writes are also deferred when the {@link StorageDurability} of the build is lower than {@link StorageDurability#MAXIMUM}.
+ * Otherwise {@link #storeNodeAsync} and {@link #saveActionsAsync} write on a small shared pool, in order per execution,
+ * while reads are served from the pending state.
+ *
+ * <p>
+ * Concurrent access, as from parallel branches, is coordinated per node by a small array of striped read-write locks,
+ * so writes of different nodes do not wait for one another, and a read never overlaps a write of the same file.
+ *
+ * <p>
+ * Once a flow has been packed by {@link FlowNodePacker}, nodes without their own file are read from the pack.
+ *
+ * <p>
+ * Each node file ends with a comment holding a checksum of its content.
+ * After a crash, the files of a flow which had not completed are verified by {@link #recover()} before first use.
+ *
  * @author Kohsuke Kawaguchi
  */
 public class SimpleXStreamFlowNodeStorage extends FlowNodeStorage {
+
+    private static final Logger LOGGER = Logger.getLogger(SimpleXStreamFlowNodeStorage.class.getName());
+
+    /**
+     * Default for {@link #SimpleXStreamFlowNodeStorage(FlowExecution, File)}.
+     */
+    public static boolean WRITE_BEHIND = Boolean.getBoolean(SimpleXStreamFlowNodeStorage.class.getName() + ".writeBehind");
+
+    /**
+     * Milliseconds to wait for more writes to coalesce before a background flush.
+     */
+    public static long WRITE_BEHIND_DELAY = Long.getLong(SimpleXStreamFlowNodeStorage.class.getName() + ".writeBehindDelay", 1000);
+
+    /**
+     * Number of pending nodes at which a background flush is started without waiting for {@link #WRITE_BEHIND_DELAY}.
+     */
+    public static int WRITE_BEHIND_BATCH = Integer.getInteger(SimpleXStreamFlowNodeStorage.class.getName() + ".writeBehindBatch", 500);
+
     private final File dir;
     private final FlowExecution exec;
-    private final LoadingCache<String,FlowNode> nodeCache = CacheBuilder.newBuilder().softValues().build(new CacheLoader<String,FlowNode>() {
-        @Override public FlowNode load(String key) throws Exception {
-            return SimpleXStreamFlowNodeStorage.this.load(key).node;
+    private final boolean writeBehind;
+    private final StructureIndex structure;
+    private final FlowNodeCache.Scope cacheScope;
+    /** Null until first needed, since looking it up during construction could recursively load the build. */
+    private volatile StorageDurability durability;
+    /** Set once the {@link FlowEndNode} has been stored. */
+    private volatile boolean completed;
+
+    /**
+     * Writes not yet persisted, keyed by node id, in order of last modification.
+     * An entry is only removed once written, so readers consult this before the disk.
+     */
+    private final Map<String,PendingWrite> pending = new LinkedHashMap<String,PendingWrite>();
+    /** Whether a background flush is scheduled or running. Guarded by {@link #pending}. */
+    private boolean flushScheduled;
+    /** Serializes flushes with one another; {@link #persist} keeps an older state from overwriting a newer one. */
+    private final Object flushLock = new Object();
+    /** Performs the writes requested by {@link #storeNodeAsync} and {@link #saveActionsAsync} in order. */
+    private final SerialExecutor io = new SerialExecutor(IO);
+    /**
+     * Guards the file of each node: writers of one node exclude each other and its readers,
+     * while nodes hashing to different stripes are written and read concurrently.
+     */
+    private final ReadWriteLock[] locks = new ReadWriteLock[LOCK_STRIPES];
+    {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+    /**
+     * MD5 of the last content written for recently saved nodes, in access order.
+     * Entries are only updated while holding the write lock of the node, so the recorded digest always matches the file.
+     */
+    private final Map<String,String> digests = new LinkedHashMap<String,String>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+            return size() > DIGEST_CACHE_SIZE;
         }
-    });
+    };
+    /** See {@link #persisted()}. */
+    private NodeIdSet persisted;
+    private boolean packPresent;
+    /** Whether this instance has created the {@link #IN_PROGRESS_MARKER}. */
+    private volatile boolean inProgress;
+    private final Object markerLock = new Object();
+    /** See {@link #recover()}. */
+    private RecoveryReport report;
+    /** See {@link #packed(String)}. */
+    private PackedFlowNodeStorage packed;
+    private long packedModified;
 
     public SimpleXStreamFlowNodeStorage(FlowExecution exec, File dir) {
+        this(exec, dir, WRITE_BEHIND);
+    }
+
+    /**
+     * @param writeBehind whether to defer writes; if so, the caller is responsible for calling {@link #flush} at checkpoints
+     */
+    public SimpleXStreamFlowNodeStorage(FlowExecution exec, File dir, boolean writeBehind) {
         this.exec = exec;
         this.dir = dir;
+        this.writeBehind = writeBehind;
+        this.structure = new StructureIndex(dir);
+        this.cacheScope = FlowNodeCache.get().scope(dir, true);
+    }
+
+    /**
+     * @param durability overrides the durability configured for the job
+     */
+    public SimpleXStreamFlowNodeStorage(FlowExecution exec, File dir, @Nonnull StorageDurability durability) {
+        this(exec, dir, WRITE_BEHIND);
+        this.durability = durability;
+    }
+
+    private @Nonnull StorageDurability durability() {
+        StorageDurability d = durability;
+        if (d == null) {
+            durability = d = StorageDurability.forExecution(exec);
+        }
+        return d;
+    }
+
+    private boolean deferred() {
+        return writeBehind || durability() != StorageDurability.MAXIMUM;
     }
 
     @Override
     public FlowNode getNode(String id) throws IOException {
-        // TODO according to Javadoc this should return null if !getNodeFile(id).isFile()
-        try {
-            return nodeCache.get(id);
-        } catch (ExecutionException x) {
-            throw new IOException(x); // could unwrap if necessary
+        FlowNode n = FlowNodeCache.get().get(cacheScope, id);
+        getStatistics().cache(n != null);
+        if (n != null) {
+            return n;
+        }
+        if (FlowNodeCache.get().isAbsent(cacheScope, id)) {
+            return null;
         }
+        return loadAndCache(id);
+    }
+
+    /**
+     * @return null if the node was never stored, which is remembered so that repeated probes cost no I/O
+     */
+    private @CheckForNull FlowNode loadAndCache(String id) throws IOException {
+        long start = System.nanoTime();
+        long generation = FlowNodeCache.get().generation(cacheScope);
+        FlowNode n = FlowNodeCache.get().getEvicted(cacheScope, id);
+        if (n != null) {
+            setExecution(n, exec);
+        } else {
+            n = loadNode(id);
+            if (n == null) {
+                FlowNodeCache.get().absent(cacheScope, id, generation);
+                return null;
+            }
+        }
+        return FlowNodeCache.get().loaded(cacheScope, n, System.nanoTime() - start);
+    }
+
+    /**
+     * Loads cache misses in id order, and in parallel once there are more than {@link #PARALLEL_READ_THRESHOLD} of them.
+     */
+    @Override
+    public Map<String,FlowNode> getNodes(Collection<String> ids) throws IOException {
+        Map<String,FlowNode> nodes = new LinkedHashMap<String,FlowNode>();
+        List<String> misses = new ArrayList<String>();
+        for (String id : ids) {
+            FlowNode n = FlowNodeCache.get().get(cacheScope, id);
+            getStatistics().cache(n != null);
+            nodes.put(id, n); // fixes the iteration order even for misses
+            if (n == null && !FlowNodeCache.get().isAbsent(cacheScope, id)) {
+                misses.add(id);
+            }
+        }
+        Collections.sort(misses, NodeIdIndex.ORDER);
+        if (misses.size() <= PARALLEL_READ_THRESHOLD) {
+            for (String id : misses) {
+                nodes.put(id, loadAndCache(id));
+            }
+        } else {
+            Map<String,Future<FlowNode>> futures = new LinkedHashMap<String,Future<FlowNode>>();
+            for (final String id : misses) {
+                futures.put(id, READERS.submit(new Callable<FlowNode>() {
+                    @Override public FlowNode call() throws IOException {
+                        return loadAndCache(id);
+                    }
+                }));
+            }
+            for (Map.Entry<String,Future<FlowNode>> e : futures.entrySet()) {
+                try {
+                    nodes.put(e.getKey(), e.getValue().get());
+                } catch (InterruptedException x) {
+                    throw (IOException) new InterruptedIOException().initCause(x);
+                } catch (ExecutionException x) {
+                    Throwable cause = x.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+        }
+        nodes.values().removeAll(Collections.singleton(null));
+        return nodes;
     }
 
     @Override
     public void storeNode(FlowNode n) throws IOException {
-        nodeCache.put(n.getId(), n);
-        XmlFile f = getNodeFile(n.getId());
-        if (!f.exists()) {
-            f.write(new Tag(n, Collections.<Action>emptyList()));
+        FlowNodeCache.get().put(cacheScope, n);
+        structure.add(n);
+        if (deferred()) {
+            if (!isPersisted(n.getId())) { // else the file may hold actions, which an empty pending state would hide
+                defer(new PendingWrite(new Tag(n, Collections.<Action>emptyList()), false));
+            }
+            if (n instanceof FlowEndNode) {
+                completed = true;
+                flush();
+            } else if ((n instanceof BlockStartNode || n instanceof BlockEndNode) && durability() == StorageDurability.PERFORMANCE) {
+                WRITER.execute(backgroundFlush);
+            }
+            return;
+        }
+        Lock l = lock(n.getId()).writeLock();
+        l.lock();
+        try {
+            if (!isPersisted(n.getId())) { // must not overwrite actions saved meanwhile
+                write(new Tag(n, Collections.<Action>emptyList()));
+            }
+        } finally {
+            l.unlock();
+        }
+        if (n instanceof FlowEndNode) {
+            completed = true;
+            structure.close();
+            clearInProgress();
         }
     }
 
+    /**
+     * Records the node as pending, where reads find it, and writes it on the {@link #IO} pool.
+     * When writes are deferred anyway this is just {@link #storeNode}.
+     */
+    @Override
+    public ListenableFuture<Void> storeNodeAsync(FlowNode n) {
+        if (deferred()) {
+            return super.storeNodeAsync(n);
+        }
+        FlowNodeCache.get().put(cacheScope, n);
+        structure.add(n);
+        if (n instanceof FlowEndNode) {
+            completed = true;
+        }
+        return writeAsync(new PendingWrite(new Tag(n, Collections.<Action>emptyList()), false));
+    }
+
+    @Override
+    public ListenableFuture<Void> saveActionsAsync(FlowNode node, List<Action> actions) {
+        if (deferred()) {
+            return super.saveActionsAsync(node, actions);
+        }
+        return writeAsync(new PendingWrite(new Tag(node, new ArrayList<Action>(actions)), true));
+    }
+
+    private ListenableFuture<Void> writeAsync(final PendingWrite w) {
+        final String id = w.tag.node.getId();
+        boolean persisted = !w.replace && isPersisted(id);
+        ListenableFuture<Void> result;
+        synchronized (pending) {
+            PendingWrite existing = pending.get(id);
+            if (existing != null && !w.replace) {
+                return existing.future(); // storeNode after saveActions, or a duplicate storeNode: done once that is
+            }
+            if (existing == null && persisted) {
+                return Futures.immediateFuture(null); // an empty pending state would hide the actions in the file until written
+            }
+            if (existing != null) {
+                pending.remove(id);
+                w.inherit(existing); // its own write will now be skipped
+            }
+            pending.put(id, w);
+            result = w.future();
+        }
+        io.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    persist(w);
+                    if (w.tag.node instanceof FlowEndNode) {
+                        structure.close();
+                        clearInProgress();
+                    }
+                } catch (IOException x) {
+                    failed(w, x);
+                } catch (RuntimeException x) {
+                    failed(w, x);
+                }
+            }
+            @Override public String toString() {
+                return "write of flow node " + id + " in " + dir;
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public FlowNodeStructure getStructure(String id) throws IOException {
+        FlowNodeStructure s = structure.get(id);
+        return s != null ? s : super.getStructure(id);
+    }
+
+    @Override public String toString() {
+        return "SimpleXStreamFlowNodeStorage[" + dir + "]";
+    }
+
     private XmlFile getNodeFile(String id) {
         return new XmlFile(XSTREAM, new File(dir,id+".xml"));
     }
 
     public List<Action> loadActions(FlowNode node) throws IOException {
-        if (!getNodeFile(node.getId()).exists())
+        PendingWrite w = pending(node.getId());
+        if (w != null) {
+            return new ArrayList<Action>(w.tag.actions());
+        }
+        if (isPersisted(node.getId())) {
+            try {
+                return load(node.getId()).actions();
+            } catch (FileNotFoundException x) {
+                missing(node.getId());
+            }
+        }
+        PackedFlowNodeStorage p = packed(node.getId());
+        if (p == null) {
             return new ArrayList<Action>(); // not yet saved
-        return load(node.getId()).actions();
+        }
+        try {
+            return p.loadActions(node);
+        } finally {
+            p.release();
+        }
+    }
+
+    /**
+     * Deserializes only those elements of the stored action list whose class is assignable to the given type.
+     */
+    @Override
+    public <T extends Action> List<T> loadActions(FlowNode node, Class<T> type) throws IOException {
+        PendingWrite w = pending(node.getId());
+        if (w != null) {
+            return super.loadActions(node, type);
+        }
+        if (isPersisted(node.getId())) {
+            try {
+                return readActions(node.getId(), node, type);
+            } catch (FileNotFoundException x) {
+                missing(node.getId());
+            }
+        }
+        PackedFlowNodeStorage p = packed(node.getId());
+        if (p == null) {
+            return new ArrayList<T>(); // not yet saved
+        }
+        try {
+            return p.loadActions(node, type);
+        } finally {
+            p.release();
+        }
+    }
+
+    private <T extends Action> List<T> readActions(String id, FlowNode node, Class<T> type) throws IOException {
+        XmlFile f = getNodeFile(id);
+        List<T> actions = new ArrayList<T>();
+        Lock l = lock(id).readLock();
+        l.lock();
+        try {
+            long start = System.nanoTime();
+            CountingInputStream in = new CountingInputStream(new FileInputStream(f.getFile()));
+            HierarchicalStreamReader r = reader(f, in);
+            try {
+                if (moveDownTo(r, "actions")) {
+                    Mapper mapper = XSTREAM.getMapper();
+                    while (r.hasMoreChildren()) {
+                        r.moveDown();
+                        Class<?> c;
+                        try {
+                            c = HierarchicalStreams.readClassType(r, mapper);
+                        } catch (CannotResolveClassException x) {
+                            c = null; // e.g. from an uninstalled plugin, so cannot be of the requested type anyway
+                        }
+                        if (c != null && type.isAssignableFrom(c)) {
+                            Object a = XSTREAM.unmarshal(r);
+                            if (type.isInstance(a)) {
+                                if (a instanceof FlowNodeAction) {
+                                    ((FlowNodeAction) a).onLoad(node);
+                                }
+                                actions.add(type.cast(a));
+                            }
+                        }
+                        r.moveUp();
+                    }
+                }
+            } catch (XStreamException x) {
+                throw new IOException("Unable to read " + f, x);
+            } finally {
+                r.close();
+                getStatistics().read(System.nanoTime() - start, in.getCount());
+            }
+        } finally {
+            l.unlock();
+        }
+        return actions;
     }
 
     /**
      * Just stores this one node
      */
     public void saveActions(FlowNode node, List<Action> actions) throws IOException {
-        getNodeFile(node.getId()).write(new Tag(node,actions));
+        if (deferred()) {
+            defer(new PendingWrite(new Tag(node, actions), true));
+            if (completed) {
+                flush(); // e.g. actions added to the end node
+            }
+            return;
+        }
+        write(new Tag(node,actions));
     }
 
-    private Tag load(String id) throws IOException {
+    /**
+     * Writes out everything deferred so far, in the calling thread.
+     * Does nothing for {@link StorageDurability#NONE} until the flow has completed.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (durability() == StorageDurability.NONE && !completed) {
+            return;
+        }
+        if (completed) {
+            structure.close();
+        } else {
+            structure.flush();
+        }
+        synchronized (flushLock) {
+            List<PendingWrite> batch;
+            synchronized (pending) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<PendingWrite>(pending.values());
+            }
+            IOException failure = null;
+            for (PendingWrite w : batch) {
+                String id = w.tag.node.getId();
+                try {
+                    persist(w);
+                } catch (IOException x) {
+                    if (failure == null) {
+                        failure = x;
+                    } else {
+                        LOGGER.log(Level.WARNING, "failed to write flow node " + id + " in " + dir, x);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (completed) {
+                clearInProgress();
+            }
+        }
+    }
+
+    /**
+     * Writes a node file unless it is known to hold exactly this content already,
+     * so that repeated saves of unchanged actions cost no I/O.
+     */
+    private void write(Tag tag) throws IOException {
+        String id = tag.node.getId();
+        String xml = XSTREAM.toXML(tag);
+        String digest = Util.getDigestOf(xml);
+        Lock l = lock(id).writeLock();
+        l.lock();
+        try {
+            synchronized (digests) {
+                if (digest.equals(digests.get(id))) {
+                    return;
+                }
+            }
+            File f = getNodeFile(id).getFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("could not create " + dir);
+            }
+            markInProgress();
+            long start = System.nanoTime();
+            String content = XML_HEADER + xml;
+            byte[] bytes = content.getBytes("UTF-8");
+            String trailer = trailer(bytes);
+            AtomicFileWriter w = new AtomicFileWriter(f, "UTF-8");
+            try {
+                w.write(content);
+                w.write(trailer);
+                w.commit();
+            } finally {
+                w.abort();
+            }
+            getStatistics().written(System.nanoTime() - start, bytes.length + trailer.length());
+            synchronized (digests) {
+                digests.put(id, digest);
+            }
+        } finally {
+            l.unlock();
+        }
+        markPersisted(id);
+    }
+
+    /**
+     * Writes a pending state unless it has been written or superseded meanwhile,
+     * then completes the futures of {@link #writeAsync} waiting for it.
+     */
+    private void persist(PendingWrite w) throws IOException {
+        String id = w.tag.node.getId();
+        List<SettableFuture<Void>> done;
+        Lock l = lock(id).writeLock();
+        l.lock();
+        try {
+            if (pending(id) != w) {
+                return;
+            }
+            if (w.replace || !isPersisted(id)) {
+                write(w.tag);
+            }
+            synchronized (pending) {
+                if (pending.get(id) == w) { // else superseded while being written, and the newer state is written next
+                    pending.remove(id);
+                }
+                done = w.takeFutures();
+            }
+        } finally {
+            l.unlock();
+        }
+        for (SettableFuture<Void> f : done) {
+            f.set(null);
+        }
+    }
+
+    /**
+     * Fails the futures of {@link #writeAsync} waiting for a pending state which could not be written.
+     * The state stays pending, so a later {@link #flush} may still write it.
+     */
+    private void failed(PendingWrite w, Throwable x) {
+        List<SettableFuture<Void>> done;
+        synchronized (pending) {
+            done = w.takeFutures();
+        }
+        for (SettableFuture<Void> f : done) {
+            f.setException(x);
+        }
+    }
+
+    private ReadWriteLock lock(String id) {
+        return locks[(id.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+
+    /**
+     * XML comment recording the CRC-32 of everything before it, checked by {@link #recover}.
+     */
+    private static String trailer(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return String.format(TRAILER_PREFIX + "%08x" + TRAILER_SUFFIX, crc.getValue());
+    }
+
+    /**
+     * Leaves a marker while the flow is running, so that after a crash the next {@link #persisted()} knows to {@link #recover}.
+     */
+    private void markInProgress() throws IOException {
+        if (inProgress || completed || exec.isComplete()) {
+            return;
+        }
+        synchronized (markerLock) {
+            File marker = new File(dir, IN_PROGRESS_MARKER);
+            if (!marker.isFile() && !marker.createNewFile()) {
+                throw new IOException("could not create " + marker);
+            }
+            inProgress = true;
+        }
+    }
+
+    private void clearInProgress() {
+        synchronized (markerLock) {
+            File marker = new File(dir, IN_PROGRESS_MARKER);
+            if (marker.isFile() && !marker.delete()) {
+                LOGGER.log(Level.WARNING, "could not delete {0}", marker);
+            }
+            inProgress = false;
+        }
+    }
+
+    /**
+     * Checks every node file left by a flow which did not complete, in one sequential pass which does not parse any XML.
+     * A file is intact if its checksum trailer matches or, for files written before checksums were added, if it ends with the closing tag.
+     * Damaged files are renamed with a {@code .corrupt} suffix and temporary files of interrupted writes deleted,
+     * so that a resumed build fails fast on the missing node rather than deep inside a graph walk, and the damage is on record.
+     * Runs automatically the first time a storage is used after a crash.
+     * @return the outcome, also logged
+     */
+    public synchronized @Nonnull RecoveryReport recover() {
+        String[] names = dir.list();
+        RecoveryReport r = recover(names != null ? names : new String[0]);
+        persisted = null; // relist
+        return r;
+    }
+
+    private RecoveryReport recover(String[] names) {
+        RecoveryReport r = new RecoveryReport(dir);
+        List<String> files = new ArrayList<String>();
+        for (String name : names) {
+            if (name.endsWith(".xml")) {
+                files.add(name);
+            } else if (name.startsWith("atomic") && name.endsWith("tmp")) {
+                File f = new File(dir, name);
+                long length = f.length();
+                if (f.delete()) {
+                    r.problem("deleted " + f + " left by an interrupted write");
+                    r.truncated(length);
+                }
+            }
+        }
+        Collections.sort(files, new Comparator<String>() {
+            @Override public int compare(String a, String b) { // numeric ids in creation order
+                return a.length() != b.length() ? a.length() - b.length() : a.compareTo(b);
+            }
+        });
+        byte[] closingTag = ("</" + XSTREAM.getMapper().serializedClass(Tag.class) + ">").getBytes(Charsets.UTF_8);
+        for (String name : files) {
+            File f = new File(dir, name);
+            String problem;
+            byte[] content;
+            try {
+                content = Files.toByteArray(f);
+                problem = verify(content, closingTag);
+            } catch (IOException x) {
+                content = null;
+                problem = "unreadable: " + x;
+            }
+            if (problem == null) {
+                r.checked();
+                continue;
+            }
+            File quarantined = new File(dir, name + ".corrupt");
+            if (!f.renameTo(quarantined)) {
+                r.problem(problem + " in " + f + ", which could not be moved aside");
+                continue;
+            }
+            r.problem(problem + " in " + f + "; moved to " + quarantined.getName());
+            r.truncated(content != null ? content.length : 0);
+        }
+        r.done();
+        report = r;
+        if (!r.isClean()) {
+            LOGGER.log(Level.WARNING, "recovered flow node storage: {0}", r);
+        } else {
+            LOGGER.log(Level.FINE, "{0}", r);
+        }
+        return r;
+    }
+
+    /**
+     * @return a description of the damage, or null if intact
+     */
+    private static @CheckForNull String verify(byte[] content, byte[] closingTag) {
+        int trailerLength = TRAILER_PREFIX.length() + 8 + TRAILER_SUFFIX.length();
+        int end = content.length - trailerLength;
+        if (end >= 0 && startsWith(content, end, TRAILER_PREFIX.getBytes(Charsets.UTF_8))) {
+            long expected;
+            try {
+                expected = Long.parseLong(new String(content, end + TRAILER_PREFIX.length(), 8, Charsets.UTF_8), 16);
+            } catch (NumberFormatException x) {
+                return "malformed checksum";
+            }
+            CRC32 crc = new CRC32();
+            crc.update(content, 0, end);
+            return crc.getValue() == expected ? null : "checksum mismatch";
+        }
+        end = content.length;
+        while (end > 0 && Character.isWhitespace(content[end - 1])) {
+            end--;
+        }
+        return end >= closingTag.length && startsWith(content, end - closingTag.length, closingTag) ? null : "truncated";
+    }
+
+    private static boolean startsWith(byte[] content, int offset, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (content[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Result of the last {@link #recover}, or null if none has run.
+     */
+    public synchronized @CheckForNull RecoveryReport getRecoveryReport() {
+        return report;
+    }
+
+    private void defer(PendingWrite w) {
+        String id = w.tag.node.getId();
+        synchronized (pending) {
+            PendingWrite existing = pending.get(id);
+            if (existing != null && !w.replace) {
+                return; // storeNode after saveActions, or a duplicate storeNode
+            }
+            if (existing != null) {
+                pending.remove(id); // keep the queue in order of last modification
+                w.inherit(existing);
+            }
+            pending.put(id, w);
+            if (durability() != StorageDurability.MAXIMUM) {
+                return; // flushed at block boundaries or on completion
+            }
+            if (!flushScheduled) {
+                flushScheduled = true;
+                WRITER.schedule(backgroundFlush, WRITE_BEHIND_DELAY, TimeUnit.MILLISECONDS);
+            } else if (pending.size() == WRITE_BEHIND_BATCH) {
+                WRITER.execute(backgroundFlush);
+            }
+        }
+    }
+
+    private @CheckForNull PendingWrite pending(String id) {
+        synchronized (pending) {
+            return pending.get(id);
+        }
+    }
+
+    private final Runnable backgroundFlush = new Runnable() {
+        @Override public void run() {
+            synchronized (pending) {
+                flushScheduled = false;
+            }
+            try {
+                flush();
+            } catch (IOException x) {
+                LOGGER.log(Level.WARNING, "failed to write flow nodes in " + dir + "; will retry", x);
+                synchronized (pending) {
+                    if (!flushScheduled) {
+                        flushScheduled = true;
+                        WRITER.schedule(this, WRITE_BEHIND_DELAY, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * Like {@link #load} but stops reading the file before the actions, which are often much larger than the node.
+     * @return null if there is neither a file nor a packed record for the node
+     */
+    private @CheckForNull FlowNode loadNode(String id) throws IOException {
+        PendingWrite w = pending(id);
+        if (w != null) {
+            return w.tag.node;
+        }
+        if (isPersisted(id)) {
+            try {
+                return readNode(id);
+            } catch (FileNotFoundException x) {
+                missing(id);
+            }
+        }
+        PackedFlowNodeStorage p = packed(id);
+        if (p == null) {
+            return null;
+        }
+        try {
+            return p.read(id);
+        } finally {
+            p.release();
+        }
+    }
+
+    private FlowNode readNode(String id) throws IOException {
         XmlFile nodeFile = getNodeFile(id);
-        Tag v = (Tag) nodeFile.read();
-        if (v.node == null) {
+        FlowNode n = null;
+        Lock l = lock(id).readLock();
+        l.lock();
+        try {
+            long start = System.nanoTime();
+            CountingInputStream in = new CountingInputStream(new FileInputStream(nodeFile.getFile()));
+            HierarchicalStreamReader r = reader(nodeFile, in);
+            try {
+                if (moveDownTo(r, "node")) {
+                    n = (FlowNode) XSTREAM.unmarshal(r);
+                }
+            } catch (XStreamException x) {
+                throw new IOException("Unable to read " + nodeFile, x);
+            } finally {
+                r.close();
+                getStatistics().read(System.nanoTime() - start, in.getCount());
+            }
+        } finally {
+            l.unlock();
+        }
+        if (n == null) {
             throw new IOException("failed to load flow node from " + nodeFile + ": " + nodeFile.asString());
         }
+        setExecution(n, exec);
+        return n;
+    }
+
+    /**
+     * Lists the directory once to learn which nodes have a file of their own, and whether there is a pack,
+     * so that existence checks need no further system calls.
+     * If a flow was left running, the node files are first checked by {@link #recover}.
+     */
+    private synchronized NodeIdSet persisted() {
+        if (persisted == null) {
+            String[] names = dir.list();
+            if (names != null && report == null && Arrays.asList(names).contains(IN_PROGRESS_MARKER)) {
+                recover(names);
+                names = dir.list();
+            }
+            NodeIdSet ids = new NodeIdSet();
+            if (names != null) {
+                for (String name : names) {
+                    if (name.endsWith(".xml")) {
+                        ids.add(name.substring(0, name.length() - ".xml".length()));
+                    } else if (name.equals(PackedFlowNodeStorage.FILE_NAME)) {
+                        packPresent = true;
+                    }
+                }
+            }
+            persisted = ids;
+        }
+        return persisted;
+    }
+
+    private synchronized boolean isPersisted(String id) {
+        return persisted().contains(id);
+    }
+
+    private synchronized void markPersisted(String id) {
+        persisted().add(id);
+    }
+
+    /**
+     * Called when a node file turned out to be gone, as happens when {@link FlowNodePacker} runs on a loaded build.
+     */
+    private synchronized void missing(String id) {
+        persisted().remove(id);
+        packPresent = new File(dir, PackedFlowNodeStorage.FILE_NAME).isFile();
+    }
+
+    /**
+     * Opens the pack written by {@link FlowNodePacker}, if any, for a node without a file of its own.
+     * Node files take precedence over the pack, since actions may still be saved after packing.
+     * A pack replaced since it was opened is closed, once no other thread is reading from it.
+     * @return null unless the pack contains the node; else a lease on the pack, to be {@linkplain PackedFlowNodeStorage#release released}
+     */
+    private synchronized @CheckForNull PackedFlowNodeStorage packed(String id) throws IOException {
+        persisted();
+        if (!packPresent) {
+            return null;
+        }
+        if (packed == null || !packed.contains(id)) { // perhaps repacked since
+            File f = new File(dir, PackedFlowNodeStorage.FILE_NAME);
+            long modified = f.lastModified();
+            if (modified == 0) {
+                packPresent = false;
+                if (packed != null) {
+                    packed.close();
+                    packed = null;
+                }
+                return null;
+            }
+            if (packed == null || packedModified != modified) {
+                PackedFlowNodeStorage previous = packed;
+                packed = new PackedFlowNodeStorage(exec, f);
+                packedModified = modified;
+                if (previous != null) {
+                    previous.close();
+                }
+            }
+        }
+        if (!packed.contains(id)) {
+            return null;
+        }
+        packed.lease(); // cannot fail, since only replaced packs are closed
+        return packed;
+    }
+
+    /**
+     * @param in the open file, closed along with the reader
+     */
+    private static HierarchicalStreamReader reader(XmlFile f, InputStream in) throws IOException {
+        boolean ok = false;
         try {
-            FlowNode$exec.set(v.node, exec);
-        } catch (IllegalAccessException e) {
-            throw (IllegalAccessError) new IllegalAccessError("Failed to set owner").initCause(e);
+            HierarchicalStreamReader r = DRIVER.createReader(new InputStreamReader(new BufferedInputStream(in), "UTF-8"));
+            ok = true;
+            return r;
+        } catch (XStreamException x) {
+            throw new IOException("Unable to read " + f, x);
+        } finally {
+            if (!ok) {
+                in.close();
+            }
         }
-        for (FlowNodeAction a : Util.filter(v.actions(), FlowNodeAction.class)) {
-            a.onLoad(v.node);
+    }
+
+    /**
+     * Positions the reader on the named child of the {@link Tag} element, skipping any earlier siblings.
+     */
+    private static boolean moveDownTo(HierarchicalStreamReader r, String name) {
+        while (r.hasMoreChildren()) {
+            r.moveDown();
+            if (r.getNodeName().equals(name)) {
+                return true;
+            }
+            r.moveUp();
+        }
+        return false;
+    }
+
+    private Tag load(String id) throws IOException {
+        PendingWrite w = pending(id);
+        if (w != null) {
+            return w.tag;
+        }
+        XmlFile nodeFile = getNodeFile(id);
+        Tag v;
+        Lock l = lock(id).readLock();
+        l.lock();
+        try {
+            long start = System.nanoTime();
+            CountingInputStream in = new CountingInputStream(new FileInputStream(nodeFile.getFile()));
+            HierarchicalStreamReader r = reader(nodeFile, in);
+            try {
+                v = (Tag) XSTREAM.unmarshal(r);
+            } catch (XStreamException x) {
+                throw new IOException("Unable to read " + nodeFile, x);
+            } finally {
+                r.close();
+                getStatistics().read(System.nanoTime() - start, in.getCount());
+            }
+        } finally {
+            l.unlock();
+        }
+        if (v.node == null) {
+            throw new IOException("failed to load flow node from " + nodeFile + ": " + nodeFile.asString());
         }
+        v.attach(exec);
         return v;
     }
 
     /**
      * To group node and their actions together into one object.
+     * Also the unit of persistence reused by other storage implementations in this package.
      */
-    private static class Tag {
+    static class Tag {
         final /* @Nonnull except perhaps after deserialization */ FlowNode node;
         private final @CheckForNull Action[] actions;
 
-        private Tag(@Nonnull FlowNode node, @Nonnull List<Action> actions) {
+        Tag(@Nonnull FlowNode node, @Nonnull List<Action> actions) {
             this.node = node;
             this.actions = actions.isEmpty() ? null : actions.toArray(new Action[actions.size()]);
         }
@@ -141,28 +1063,155 @@ public class SimpleXStreamFlowNodeStorage extends FlowNodeStorage {
         public @Nonnull List<Action> actions() {
             return actions != null ? Arrays.asList(actions) : Collections.<Action>emptyList();
         }
+
+        /**
+         * Reconnects a freshly deserialized node and its actions to the owning execution.
+         */
+        void attach(FlowExecution exec) {
+            setExecution(node, exec);
+            for (FlowNodeAction a : Util.filter(actions(), FlowNodeAction.class)) {
+                a.onLoad(node);
+            }
+        }
     }
 
+    /**
+     * Sets the transient owner of a freshly deserialized node.
+     */
+    static void setExecution(FlowNode node, FlowExecution exec) {
+        try {
+            FlowNode$exec.set(node, exec);
+        } catch (IllegalAccessException e) {
+            throw (IllegalAccessError) new IllegalAccessError("Failed to set owner").initCause(e);
+        }
+    }
+
+    /**
+     * A deferred write.
+     */
+    private static final class PendingWrite {
+        final Tag tag;
+        /** False for {@link #storeNode}, which must not overwrite an existing file. */
+        final boolean replace;
+        /** Callers of {@link #writeAsync} waiting for this state, or a later one replacing it, to be written. Guarded by {@link #pending}. */
+        private List<SettableFuture<Void>> futures;
+        PendingWrite(Tag tag, boolean replace) {
+            this.tag = tag;
+            this.replace = replace;
+        }
+        ListenableFuture<Void> future() {
+            SettableFuture<Void> f = SettableFuture.create();
+            if (futures == null) {
+                futures = new ArrayList<SettableFuture<Void>>(1);
+            }
+            futures.add(f);
+            return f;
+        }
+        void inherit(PendingWrite older) {
+            List<SettableFuture<Void>> waiting = older.takeFutures();
+            if (!waiting.isEmpty()) {
+                if (futures == null) {
+                    futures = new ArrayList<SettableFuture<Void>>(waiting.size());
+                }
+                futures.addAll(waiting);
+            }
+        }
+        List<SettableFuture<Void>> takeFutures() {
+            List<SettableFuture<Void>> taken = futures != null ? futures : Collections.<SettableFuture<Void>>emptyList();
+            futures = null;
+            return taken;
+        }
+    }
+
+    private static final String XML_HEADER = "<?xml version='1.0' encoding='UTF-8'?>\n";
+    private static final String TRAILER_PREFIX = "<!-- crc32:";
+    private static final String TRAILER_SUFFIX = " -->\n";
+    /** Present in the directory while a flow which has written nodes has not completed. */
+    static final String IN_PROGRESS_MARKER = "in-progress";
+
+    /**
+     * Number of locks among which node ids are spread; see {@link #lock(String)}.
+     */
+    private static final int LOCK_STRIPES = Integer.getInteger(SimpleXStreamFlowNodeStorage.class.getName() + ".lockStripes", 16);
+
+    /**
+     * Number of recently written nodes for which {@link #digests} are remembered.
+     */
+    private static final int DIGEST_CACHE_SIZE = 256;
+
+    /**
+     * Number of cache misses above which {@link #getNodes(Collection)} reads in parallel.
+     */
+    public static int PARALLEL_READ_THRESHOLD = Integer.getInteger(SimpleXStreamFlowNodeStorage.class.getName() + ".parallelReadThreshold", 16);
+
+    /**
+     * Bounded pool for parallel bulk reads, shared by all executions; threads exit when idle.
+     */
+    private static final ExecutorService READERS;
+    static {
+        int threads = Integer.getInteger(SimpleXStreamFlowNodeStorage.class.getName() + ".readerThreads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "SimpleXStreamFlowNodeStorage.reader"));
+        pool.allowCoreThreadTimeOut(true);
+        READERS = pool;
+    }
+
+    /**
+     * Bounded pool for asynchronous writes, shared by all executions; threads exit when idle.
+     */
+    private static final ExecutorService IO;
+    static {
+        int threads = Integer.getInteger(SimpleXStreamFlowNodeStorage.class.getName() + ".ioThreads", 2);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "SimpleXStreamFlowNodeStorage.io"));
+        pool.allowCoreThreadTimeOut(true);
+        IO = pool;
+    }
+
+    /**
+     * Dedicated thread performing write-behind flushes for all executions.
+     */
+    private static final ScheduledExecutorService WRITER = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "SimpleXStreamFlowNodeStorage.writer"));
+
     public static final XStream2 XSTREAM = new XStream2();
 
+    /** Used for partial reads of node files. */
+    private static final XppDriver DRIVER = new XppDriver();
+
+    /** Key of the node id map in an {@link UnmarshallingContext}. */
+    private static final Object IDS = new Object();
+
     private static final Field FlowNode$exec;
-    private static final Field FlowNode$parents;
-    private static final Field FlowNode$parentIds;
+    static final Field FlowNode$parents;
+    static final Field FlowNode$parentIds;
 
     static {
         XSTREAM.registerConverter(new Converter() {
             private final RobustReflectionConverter ref = new RobustReflectionConverter(XSTREAM.getMapper(), JVM.newReflectionProvider());
-            // IdentityHashMap could leak memory. WeakHashMap compares by equals, which will fail with NPE in FlowNode.hashCode.
-            private final Map<FlowNode,String> ids = CacheBuilder.newBuilder().weakKeys().<FlowNode,String>build().asMap();
             @Override public boolean canConvert(Class type) {
                 return FlowNode.class.isAssignableFrom(type);
             }
+            /**
+             * Ids of nodes unmarshalled so far in this document, used to resolve the parents of the old format.
+             * Scoped to the context rather than shared, so it needs no synchronization and is discarded after each read.
+             * WeakHashMap would compare by equals, which would fail with NPE in FlowNode.hashCode.
+             */
+            private Map<FlowNode,String> ids(UnmarshallingContext context) {
+                @SuppressWarnings("unchecked") Map<FlowNode,String> ids = (Map<FlowNode,String>) context.get(IDS);
+                if (ids == null) {
+                    ids = new IdentityHashMap<FlowNode,String>();
+                    context.put(IDS, ids);
+                }
+                return ids;
+            }
             @Override public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
                 ref.marshal(source, writer, context);
             }
             @Override public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
                 try {
                     FlowNode n = (FlowNode) ref.unmarshal(reader, context);
+                    Map<FlowNode,String> ids = ids(context);
                     ids.put(n, reader.getValue());
                     try {
                         @SuppressWarnings("unchecked") List<FlowNode> parents = (List<FlowNode>) FlowNode$parents.get(n);
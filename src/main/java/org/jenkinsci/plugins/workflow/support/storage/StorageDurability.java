@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+import org.jenkinsci.plugins.workflow.support.pickles.serialization.RiverWriter;
+
+/**
+ * How hard a build tries to persist its state so that it can survive a restart of Jenkins.
+ * Honored by {@link SimpleXStreamFlowNodeStorage} for the flow graph and by {@link RiverWriter} for program state.
+ * {@link SegmentedFlowNodeStorage} hands records to the operating system at once, since it reads them back from disk,
+ * and {@link KeyValueFlowNodeStorage} does so at every block boundary and flush,
+ * so for them durability only decides when those records are forced to disk.
+ * @see StorageDurabilityJobProperty
+ */
+public enum StorageDurability {
+
+    /**
+     * Every node and action change is written as it happens, as is program state,
+     * which replaces the previous state atomically once synced to disk.
+     */
+    MAXIMUM("Maximum: write every change immediately"),
+
+    /**
+     * Nodes and actions are written lazily in the background, when blocks start or end;
+     * program state replaces the previous state atomically, but is not synced to disk first.
+     */
+    PERFORMANCE("Performance: write lazily, persisting at block boundaries"),
+
+    /**
+     * Nothing is written until the build completes, so a running build cannot be resumed after a restart.
+     * Program state is not even serialized.
+     */
+    NONE("None: keep everything in memory until the build completes");
+
+    private static final Logger LOGGER = Logger.getLogger(StorageDurability.class.getName());
+
+    private final String description;
+
+    StorageDurability(String description) {
+        this.description = description;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Looks up the durability configured for the job running a flow.
+     * @return {@link #MAXIMUM} unless the owning job has a {@link StorageDurabilityJobProperty}
+     */
+    public static @Nonnull StorageDurability forOwner(@CheckForNull FlowExecutionOwner owner) {
+        if (owner == null) {
+            return MAXIMUM;
+        }
+        try {
+            Queue.Executable executable = owner.getExecutable();
+            if (executable instanceof Run) {
+                Job<?,?> job = ((Run<?,?>) executable).getParent();
+                StorageDurabilityJobProperty property = job.getProperty(StorageDurabilityJobProperty.class);
+                if (property != null) {
+                    return property.getDurability();
+                }
+            }
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, "could not look up durability of " + owner, x);
+        }
+        return MAXIMUM;
+    }
+
+    /**
+     * Looks up the durability configured for the job running a flow.
+     */
+    public static @Nonnull StorageDurability forExecution(@CheckForNull FlowExecution exec) {
+        return exec == null ? MAXIMUM : forOwner(exec.getOwner());
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Job;
+import hudson.model.JobProperty;
+import hudson.model.JobPropertyDescriptor;
+import hudson.util.ListBoxModel;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Lets a job trade the ability of its builds to survive a restart for less storage overhead,
+ * and choose its own {@link FlowNodeStorageEngine}.
+ */
+public class StorageDurabilityJobProperty extends JobProperty<Job<?,?>> {
+
+    private final StorageDurability durability;
+    private String engine;
+
+    @DataBoundConstructor public StorageDurabilityJobProperty(StorageDurability durability) {
+        this.durability = durability;
+    }
+
+    public @Nonnull StorageDurability getDurability() {
+        return durability != null ? durability : StorageDurability.MAXIMUM;
+    }
+
+    /**
+     * @return the {@link FlowNodeStorageEngineDescriptor#getId} of the engine for new builds, or null for the global default
+     */
+    public @CheckForNull String getEngine() {
+        return Util.fixEmpty(engine);
+    }
+
+    @DataBoundSetter public void setEngine(@CheckForNull String engine) {
+        this.engine = Util.fixEmpty(engine);
+    }
+
+    @Extension public static class DescriptorImpl extends JobPropertyDescriptor {
+
+        @Override public String getDisplayName() {
+            return "Pipeline storage";
+        }
+
+        /**
+         * Omits the property when it would just restate the default.
+         */
+        @Override public JobProperty<?> newInstance(StaplerRequest req, JSONObject formData) throws FormException {
+            JobProperty<?> property = super.newInstance(req, formData);
+            if (property instanceof StorageDurabilityJobProperty && ((StorageDurabilityJobProperty) property).getDurability() == StorageDurability.MAXIMUM
+                    && ((StorageDurabilityJobProperty) property).getEngine() == null) {
+                return null;
+            }
+            return property;
+        }
+
+        public ListBoxModel doFillEngineItems() {
+            return FlowNodeStorageEngine.items("Global default");
+        }
+
+    }
+
+}
@@ -0,0 +1,328 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Counts the reads and writes of a {@link FlowNodeStorage}: latency histograms, bytes, records and node cache hits.
+ *
+ * <p>
+ * Each storage keeps its own instance, obtained from {@link #forStorage}, which also adds everything to {@link #total()}.
+ * Instances stay listed in {@link #executions} while their storage is in use.
+ * The total is registered as a JMX MBean and, together with the per-execution figures, served as JSON by {@link StorageStatisticsAction}.
+ */
+public final class StorageStatistics implements StorageStatisticsMBean {
+
+    private static final Logger LOGGER = Logger.getLogger(StorageStatistics.class.getName());
+
+    private static final StorageStatistics TOTAL = new StorageStatistics("total", null);
+
+    /**
+     * Live per-execution instances by storage, compared by identity since two storages may describe themselves alike.
+     * Dropped once their storage is garbage collected.
+     */
+    private static final Cache<FlowNodeStorage,StorageStatistics> EXECUTIONS = CacheBuilder.newBuilder().weakKeys().build();
+
+    /**
+     * Creates the statistics of one storage, named after its location.
+     */
+    static @Nonnull StorageStatistics forStorage(@Nonnull FlowNodeStorage storage, @Nonnull String name) {
+        StorageStatistics s = new StorageStatistics(name, TOTAL);
+        EXECUTIONS.put(storage, s);
+        return s;
+    }
+
+    /**
+     * Sums up all storage I/O since startup.
+     */
+    public static @Nonnull StorageStatistics total() {
+        return TOTAL;
+    }
+
+    /**
+     * Statistics of storage currently in use, busiest first by bytes written.
+     */
+    public static @Nonnull List<StorageStatistics> executions() {
+        List<StorageStatistics> result = new ArrayList<StorageStatistics>(EXECUTIONS.asMap().values());
+        Collections.sort(result, new Comparator<StorageStatistics>() {
+            @Override public int compare(StorageStatistics a, StorageStatistics b) {
+                long x = a.getBytesWritten();
+                long y = b.getBytesWritten();
+                return x > y ? -1 : x == y ? 0 : 1;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Registers {@link #total} under {@link #OBJECT_NAME}, replacing any registration left by an earlier Jenkins in this JVM.
+     */
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+            server.registerMBean(TOTAL, on);
+        } catch (JMException x) {
+            LOGGER.log(Level.WARNING, "could not register " + OBJECT_NAME, x);
+        }
+    }
+
+    @Terminator
+    public static void unregisterMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+        } catch (JMException x) {
+            LOGGER.log(Level.WARNING, "could not unregister " + OBJECT_NAME, x);
+        }
+    }
+
+    static final String OBJECT_NAME = "org.jenkinsci.plugins.workflow.support.storage:type=StorageStatistics";
+
+    private final String name;
+    private final @CheckForNull StorageStatistics parent;
+    private final Histogram readLatency = new Histogram();
+    private final Histogram writeLatency = new Histogram();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    private StorageStatistics(String name, @CheckForNull StorageStatistics parent) {
+        this.name = name;
+        this.parent = parent;
+    }
+
+    /**
+     * Records one record or file read.
+     */
+    void read(long nanos, long bytes) {
+        readLatency.add(nanos);
+        bytesRead.addAndGet(bytes);
+        if (parent != null) {
+            parent.read(nanos, bytes);
+        }
+    }
+
+    /**
+     * Records one record or file written.
+     */
+    void written(long nanos, long bytes) {
+        writeLatency.add(nanos);
+        bytesWritten.addAndGet(bytes);
+        if (parent != null) {
+            parent.written(nanos, bytes);
+        }
+    }
+
+    /**
+     * Records a node lookup answered, or not, by {@link FlowNodeCache}.
+     */
+    void cache(boolean hit) {
+        (hit ? cacheHits : cacheMisses).incrementAndGet();
+        if (parent != null) {
+            parent.cache(hit);
+        }
+    }
+
+    @Override public String getName() {
+        return name;
+    }
+
+    @Override public long getReadCount() {
+        return readLatency.count();
+    }
+
+    @Override public long getWriteCount() {
+        return writeLatency.count();
+    }
+
+    @Override public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override public long getCacheHitCount() {
+        return cacheHits.get();
+    }
+
+    @Override public long getCacheMissCount() {
+        return cacheMisses.get();
+    }
+
+    @Override public double getCacheHitRatio() {
+        long h = cacheHits.get();
+        long total = h + cacheMisses.get();
+        return total == 0 ? 1.0 : (double) h / total;
+    }
+
+    @Override public double getMeanReadMicros() {
+        return readLatency.mean();
+    }
+
+    @Override public double getMeanWriteMicros() {
+        return writeLatency.mean();
+    }
+
+    @Override public long getReadMicros50() {
+        return readLatency.percentile(0.5);
+    }
+
+    @Override public long getReadMicros99() {
+        return readLatency.percentile(0.99);
+    }
+
+    @Override public long getWriteMicros50() {
+        return writeLatency.percentile(0.5);
+    }
+
+    @Override public long getWriteMicros99() {
+        return writeLatency.percentile(0.99);
+    }
+
+    public @Nonnull JSONObject toJSON() {
+        JSONObject o = new JSONObject();
+        o.put("name", name);
+        o.put("reads", getReadCount());
+        o.put("writes", getWriteCount());
+        o.put("bytesRead", getBytesRead());
+        o.put("bytesWritten", getBytesWritten());
+        o.put("cacheHits", getCacheHitCount());
+        o.put("cacheMisses", getCacheMissCount());
+        o.put("cacheHitRatio", getCacheHitRatio());
+        o.put("readLatency", readLatency.toJSON());
+        o.put("writeLatency", writeLatency.toJSON());
+        return o;
+    }
+
+    @Override public String toString() {
+        return "StorageStatistics[" + name + ": reads=" + getReadCount() + ", writes=" + getWriteCount()
+                + ", bytesRead=" + getBytesRead() + ", bytesWritten=" + getBytesWritten() + ", cacheHitRatio=" + getCacheHitRatio() + "]";
+    }
+
+    /**
+     * Latency histogram with power-of-two buckets in microseconds, from under 1µs up to about a minute.
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 27;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalMicros = new AtomicLong();
+
+        void add(long nanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            counts.incrementAndGet(bucket);
+            count.incrementAndGet();
+            totalMicros.addAndGet(micros);
+        }
+
+        long count() {
+            return count.get();
+        }
+
+        double mean() {
+            long c = count.get();
+            return c == 0 ? 0.0 : (double) totalMicros.get() / c;
+        }
+
+        /**
+         * @return the upper bound in microseconds of the bucket holding the given fraction of samples
+         */
+        long percentile(double p) {
+            long c = count.get();
+            if (c == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(p * c);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= threshold) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        private static long upperBound(int bucket) {
+            return bucket == 0 ? 1 : 1L << bucket;
+        }
+
+        JSONObject toJSON() {
+            JSONObject o = new JSONObject();
+            o.put("count", count());
+            o.put("meanMicros", mean());
+            o.put("p50Micros", percentile(0.5));
+            o.put("p90Micros", percentile(0.9));
+            o.put("p99Micros", percentile(0.99));
+            JSONArray buckets = new JSONArray();
+            for (int i = 0; i < BUCKETS; i++) {
+                long n = counts.get(i);
+                if (n > 0) {
+                    JSONObject b = new JSONObject();
+                    b.put("lessThanMicros", upperBound(i));
+                    b.put("count", n);
+                    buckets.add(b);
+                }
+            }
+            o.put("buckets", buckets);
+            return o;
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import java.io.IOException;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Serves {@link StorageStatistics} as JSON at {@code /flowNodeStorage/} to administrators,
+ * with the total, the node cache, and each execution currently in use, busiest first.
+ * The number of executions listed may be limited with the {@code top} parameter.
+ */
+@Extension public class StorageStatisticsAction implements RootAction {
+
+    @Override public String getIconFileName() {
+        return null;
+    }
+
+    @Override public String getDisplayName() {
+        return "Flow node storage statistics";
+    }
+
+    @Override public String getUrlName() {
+        return "flowNodeStorage";
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins j = Jenkins.getInstance();
+        if (j == null) {
+            throw new IllegalStateException("Jenkins is not running");
+        }
+        j.checkPermission(Jenkins.ADMINISTER);
+        int top = 100;
+        String topParam = req.getParameter("top");
+        if (topParam != null) {
+            try {
+                top = Math.max(0, Integer.parseInt(topParam));
+            } catch (NumberFormatException x) {
+                // keep the default
+            }
+        }
+        JSONObject o = new JSONObject();
+        o.put("total", StorageStatistics.total().toJSON());
+        FlowNodeCache cache = FlowNodeCache.get();
+        JSONObject c = new JSONObject();
+        c.put("size", cache.getSize());
+        c.put("hitRate", cache.getHitRate());
+        c.put("loads", cache.getLoadCount());
+        c.put("averageLoadPenaltyNanos", cache.getAverageLoadPenalty());
+        c.put("evictions", cache.getEvictionCount());
+        c.put("absentHits", cache.getAbsentHitCount());
+        c.put("offHeapSize", cache.getOffHeapSize());
+        c.put("offHeapHits", cache.getOffHeapHitCount());
+        o.put("cache", c);
+        JSONArray executions = new JSONArray();
+        for (StorageStatistics s : StorageStatistics.executions()) {
+            if (executions.size() == top) {
+                break;
+            }
+            executions.add(s.toJSON());
+        }
+        o.put("executions", executions);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(o.toString(2));
+    }
+
+}
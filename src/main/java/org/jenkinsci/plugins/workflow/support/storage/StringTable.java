@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-execution dictionary of strings repeated across nodes and actions.
+ * Records refer to strings by index, and every record decoded against the same table shares the same string instances.
+ * New strings must be persisted, in order, before any record referring to them.
+ */
+final class StringTable {
+
+    private final Map<String,Integer> indices = new HashMap<String,Integer>();
+    private final List<String> strings = new ArrayList<String>();
+    /** Number of strings known to be persisted. */
+    private int persisted;
+
+    /**
+     * Looks up a string, adding it if new.
+     */
+    synchronized int index(String s) {
+        Integer i = indices.get(s);
+        if (i == null) {
+            i = strings.size();
+            strings.add(s);
+            indices.put(s, i);
+        }
+        return i;
+    }
+
+    synchronized String get(int index) throws IOException {
+        if (index < 0 || index >= strings.size()) {
+            throw new IOException("unknown string #" + index);
+        }
+        return strings.get(index);
+    }
+
+    synchronized int size() {
+        return strings.size();
+    }
+
+    /**
+     * Index of the first string not yet persisted.
+     */
+    synchronized int persisted() {
+        return persisted;
+    }
+
+    /**
+     * Strings added since the last {@link #markPersisted}, starting at index {@link #persisted()}.
+     */
+    synchronized List<String> unpersisted() {
+        return new ArrayList<String>(strings.subList(persisted, strings.size()));
+    }
+
+    synchronized void markPersisted(int count) {
+        persisted = Math.max(persisted, count);
+    }
+
+    /**
+     * Adds strings read back from storage.
+     * @param first the index of the first string, which must follow those already loaded
+     */
+    synchronized void load(int first, List<String> loaded) throws IOException {
+        if (first != strings.size()) {
+            throw new IOException("expected strings from #" + strings.size() + " but found #" + first);
+        }
+        for (String s : loaded) {
+            indices.put(s, strings.size());
+            strings.add(s);
+        }
+        persisted = strings.size();
+    }
+
+}
@@ -0,0 +1,329 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+/**
+ * Side index of the shape of a flow graph: for each node, its parents, its class and, for block ends, its start.
+ * Kept in memory as primitive arrays indexed by numeric node id, and persisted as an append-only file of varints,
+ * so it can be read back without loading any node.
+ * Nodes or parents with non-numeric ids are not indexed; callers fall back to loading such nodes.
+ * This is derived data: a node missing from the index, say after a crash, just costs a load.
+ * New records are buffered in memory and appended in batches, opening the file only for the duration of each,
+ * so that running builds hold no file descriptors.
+ */
+final class StructureIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(StructureIndex.class.getName());
+
+    static final String FILE_NAME = "structure.idx";
+
+    private static final int[] NO_PARENTS = new int[0];
+
+    private final File file;
+
+    private boolean loaded;
+    /** Position after the last complete record. */
+    private long validLength;
+    /** Whether any partial record left by a crash has been dropped. */
+    private boolean prepared;
+    /** Records not yet appended to the file. */
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(buffer);
+
+    private final List<String> classNames = new ArrayList<String>();
+    private final Map<String,Integer> classIndices = new HashMap<String,Integer>();
+    /** Index into {@link #classNames}, or -1 for unindexed nodes. */
+    private int[] classOf = newArray(64);
+    private int[][] parentsOf = new int[64][];
+    /** Start node id of block ends, else -1. */
+    private int[] startOf = newArray(64);
+
+    StructureIndex(File dir) {
+        this.file = new File(dir, FILE_NAME);
+    }
+
+    /**
+     * @return null if the node is not indexed
+     */
+    synchronized @CheckForNull FlowNodeStructure get(String id) {
+        load();
+        int i = NodeIdIndex.parse(id);
+        if (i < 0 || i >= classOf.length || classOf[i] < 0) {
+            return null;
+        }
+        int[] parents = parentsOf[i];
+        List<String> parentIds = new ArrayList<String>(parents.length);
+        for (int p : parents) {
+            parentIds.add(Integer.toString(p));
+        }
+        return new FlowNodeStructure(id, parentIds, classNames.get(classOf[i]), startOf[i] >= 0 ? Integer.toString(startOf[i]) : null);
+    }
+
+    synchronized boolean contains(String id) {
+        load();
+        int i = NodeIdIndex.parse(id);
+        return i >= 0 && i < classOf.length && classOf[i] >= 0;
+    }
+
+    /**
+     * Records a newly stored node, if it is not indexed yet.
+     */
+    synchronized void add(FlowNode n) throws IOException {
+        load();
+        int i = NodeIdIndex.parse(n.getId());
+        if (i < 0 || i >= NodeIdIndex.MAX_DENSE || (i < classOf.length && classOf[i] >= 0)) {
+            return;
+        }
+        FlowNodeStructure s = FlowNodeStructure.of(n);
+        List<String> parentIds = s.getParentIds();
+        int[] parents = parentIds.isEmpty() ? NO_PARENTS : new int[parentIds.size()];
+        for (int j = 0; j < parents.length; j++) {
+            parents[j] = NodeIdIndex.parse(parentIds.get(j));
+            if (parents[j] < 0) {
+                return;
+            }
+        }
+        int start = s.getStartId() != null ? NodeIdIndex.parse(s.getStartId()) : -1;
+        DataOutputStream dos = out;
+        Integer c = classIndices.get(s.getNodeClass());
+        if (c == null) {
+            c = classNames.size();
+            dos.writeByte(CLASS);
+            dos.writeUTF(s.getNodeClass());
+            defineClass(s.getNodeClass());
+        }
+        dos.writeByte(NODE);
+        BinaryRecordCodec.writeVarInt(dos, i);
+        BinaryRecordCodec.writeVarInt(dos, c);
+        BinaryRecordCodec.writeVarInt(dos, parents.length);
+        for (int p : parents) {
+            BinaryRecordCodec.writeVarInt(dos, p);
+        }
+        BinaryRecordCodec.writeVarInt(dos, start + 1);
+        put(i, c, parents, start);
+        if (buffer.size() >= BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Appends buffered records to the file.
+     */
+    synchronized void flush() throws IOException {
+        if (buffer.size() == 0) {
+            return;
+        }
+        prepare();
+        boolean ok = false;
+        FileOutputStream fos = new FileOutputStream(file, true);
+        try {
+            buffer.writeTo(fos);
+            fos.close();
+            ok = true;
+        } finally {
+            if (!ok) {
+                fos.close();
+                prepared = false; // truncate whatever was written before retrying
+            }
+        }
+        validLength += buffer.size();
+        buffer.reset();
+    }
+
+    /**
+     * Flushes, for example once the flow has completed.
+     */
+    synchronized void close() throws IOException {
+        flush();
+    }
+
+    private void prepare() throws IOException {
+        if (!prepared) {
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("could not create " + dir);
+            }
+            // Drop any partial record left by a crash, so that new records are reachable by a sequential read.
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (validLength < HEADER_SIZE) {
+                    raf.setLength(0);
+                    raf.writeLong(MAGIC);
+                    raf.writeShort(VERSION);
+                    validLength = HEADER_SIZE;
+                } else {
+                    raf.setLength(validLength);
+                }
+            } finally {
+                raf.close();
+            }
+            prepared = true;
+        }
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.isFile()) {
+            return;
+        }
+        try {
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+            DataInputStream in = new DataInputStream(counter);
+            try {
+                if (in.readLong() != MAGIC || in.readShort() != VERSION) {
+                    LOGGER.log(Level.WARNING, "ignoring unrecognized {0}", file);
+                    return;
+                }
+                validLength = counter.count;
+                while (true) {
+                    int type = in.read();
+                    if (type == -1) {
+                        break;
+                    }
+                    if (type == CLASS) {
+                        defineClass(in.readUTF());
+                    } else if (type == NODE) {
+                        int i = BinaryRecordCodec.readVarInt(in);
+                        int c = BinaryRecordCodec.readVarInt(in);
+                        int[] parents = new int[BinaryRecordCodec.readVarInt(in)];
+                        for (int j = 0; j < parents.length; j++) {
+                            parents[j] = BinaryRecordCodec.readVarInt(in);
+                        }
+                        int start = BinaryRecordCodec.readVarInt(in) - 1;
+                        if (c >= classNames.size() || i >= NodeIdIndex.MAX_DENSE) {
+                            LOGGER.log(Level.WARNING, "corrupt record at {0} in {1}", new Object[] {validLength, file});
+                            break;
+                        }
+                        put(i, c, parents, start);
+                    } else {
+                        LOGGER.log(Level.WARNING, "corrupt record at {0} in {1}", new Object[] {validLength, file});
+                        break;
+                    }
+                    validLength = counter.count;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException x) {
+            LOGGER.log(Level.FINE, "ignoring incomplete record at the end of {0}", file);
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "could not read " + file, x);
+        }
+    }
+
+    private void defineClass(String name) {
+        classIndices.put(name, classNames.size());
+        classNames.add(name);
+    }
+
+    private void put(int i, int c, int[] parents, int start) {
+        if (i >= classOf.length) {
+            int length = Math.min(NodeIdIndex.MAX_DENSE, Math.max(i + 1, classOf.length * 2));
+            classOf = grow(classOf, length);
+            startOf = grow(startOf, length);
+            int[][] grown = new int[length][];
+            System.arraycopy(parentsOf, 0, grown, 0, parentsOf.length);
+            parentsOf = grown;
+        }
+        classOf[i] = c;
+        parentsOf[i] = parents;
+        startOf[i] = start;
+    }
+
+    private static int[] newArray(int length) {
+        int[] a = new int[length];
+        Arrays.fill(a, -1);
+        return a;
+    }
+
+    private static int[] grow(int[] a, int length) {
+        int[] grown = newArray(length);
+        System.arraycopy(a, 0, grown, 0, a.length);
+        return grown;
+    }
+
+    /**
+     * Counts bytes consumed, to track the end of the last complete record.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+        @Override public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+        @Override public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    private static final byte CLASS = 1;
+    private static final byte NODE = 2;
+    /*constant*/ static final long MAGIC = 0x466c6f7753747275L; // "FlowStru"
+    /*constant*/ static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8 + 2;
+    /** Bytes of buffered records at which they are appended without waiting for {@link #flush}. */
+    private static final int BATCH_SIZE = 8 * 1024;
+
+}
@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.model.InvisibleAction;
+import java.io.IOException;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Stands in for a stored action which could not be deserialized, say because its plugin is not installed,
+ * so that saving the loaded action list writes the original record back instead of silently dropping it.
+ * Once the action becomes readable again it is loaded as usual.
+ *
+ * <p>
+ * Storages keeping raw records write the record back as is. {@link SimpleXStreamFlowNodeStorage}, which may serve such an action
+ * from a pack, writes this object itself, so it keeps the id of its codec, and decodes the record again when read back.
+ * @see SegmentedFlowNodeStorage#decodeAction
+ */
+final class UnreadableAction extends InvisibleAction {
+
+    /** The codec instance, which may depend on its storage, as with a dictionary; null when read back from XML. */
+    private final transient FlowNodeRecordCodec codec;
+    final byte codecId;
+    final String className;
+    final byte[] data;
+
+    UnreadableAction(@Nonnull FlowNodeRecordCodec codec, @Nonnull String className, @Nonnull byte[] data) {
+        this.codec = codec;
+        this.codecId = codec.getId();
+        this.className = className;
+        this.data = data;
+    }
+
+    /**
+     * @return the codec of {@link #data}, or null if it is not known
+     */
+    @CheckForNull FlowNodeRecordCodec codec() {
+        return codec != null ? codec : FlowNodeRecordCodec.forId(codecId);
+    }
+
+    /**
+     * Loads the original action once it has become readable.
+     */
+    private Object readResolve() {
+        FlowNodeRecordCodec c = codec();
+        if (c != null) {
+            try {
+                return c.decodeAction(data);
+            } catch (IOException x) {
+                // still unreadable
+            } catch (RuntimeException x) {
+                // still unreadable
+            }
+        }
+        return this;
+    }
+
+    @Override public String toString() {
+        return "UnreadableAction[" + className + "]";
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.model.Action;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.support.storage.SimpleXStreamFlowNodeStorage.Tag;
+
+/**
+ * Stores records as the same XML that {@link SimpleXStreamFlowNodeStorage} writes to its per-node files.
+ */
+public final class XStreamRecordCodec extends FlowNodeRecordCodec {
+
+    public static final XStreamRecordCodec INSTANCE = new XStreamRecordCodec();
+
+    private XStreamRecordCodec() {}
+
+    @Override public byte getId() {
+        return 0;
+    }
+
+    @Override public byte[] encode(FlowNode node, List<Action> actions) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Writer w = new OutputStreamWriter(baos, "UTF-8");
+        SimpleXStreamFlowNodeStorage.XSTREAM.toXML(new Tag(node, actions), w);
+        w.flush();
+        return baos.toByteArray();
+    }
+
+    @Override public FlowNode decode(byte[] data, List<Action> actions) throws IOException {
+        Tag t = (Tag) SimpleXStreamFlowNodeStorage.XSTREAM.fromXML(new InputStreamReader(new ByteArrayInputStream(data), "UTF-8"));
+        if (t.node == null) {
+            throw new IOException("no flow node in " + new String(data, "UTF-8"));
+        }
+        actions.addAll(t.actions());
+        return t.node;
+    }
+
+    @Override public byte[] encodeAction(Action action) throws IOException {
+        return SimpleXStreamFlowNodeStorage.XSTREAM.toXML(action).getBytes("UTF-8");
+    }
+
+    @Override public Action decodeAction(byte[] data) throws IOException {
+        Object o = SimpleXStreamFlowNodeStorage.XSTREAM.fromXML(new String(data, "UTF-8"));
+        if (!(o instanceof Action)) {
+            throw new IOException("expected an action but found " + o);
+        }
+        return (Action) o;
+    }
+
+}
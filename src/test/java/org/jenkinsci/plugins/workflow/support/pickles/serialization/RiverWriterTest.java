@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.pickles.serialization;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import org.jboss.marshalling.Unmarshaller;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+import org.jenkinsci.plugins.workflow.support.storage.StorageDurability;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.Mockito;
+
+public class RiverWriterTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test public void maximumRoundTrip() throws Exception {
+        roundTrip(StorageDurability.MAXIMUM);
+    }
+
+    @Test public void performanceRoundTrip() throws Exception {
+        roundTrip(StorageDurability.PERFORMANCE);
+    }
+
+    private void roundTrip(StorageDurability durability) throws Exception {
+        File dir = tmp.newFolder();
+        File file = new File(dir, "program.dat");
+        FlowExecutionOwner owner = Mockito.mock(FlowExecutionOwner.class);
+        write(file, owner, durability, "first");
+        write(file, owner, durability, "second");
+        assertEquals("the temporary file was moved into place", Collections.singletonList("program.dat"), Arrays.asList(dir.list()));
+        RiverReader reader = new RiverReader(file, RiverWriterTest.class.getClassLoader(), owner);
+        try {
+            Unmarshaller u = reader.restorePickles(new ArrayList<ListenableFuture<?>>()).get();
+            assertEquals("second", u.readObject());
+            assertSame(owner, u.readObject());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test public void noneDeletesStaleProgram() throws Exception {
+        File dir = tmp.newFolder();
+        File file = new File(dir, "program.dat");
+        FlowExecutionOwner owner = Mockito.mock(FlowExecutionOwner.class);
+        write(file, owner, StorageDurability.MAXIMUM, "resumable");
+        assertTrue(file.isFile());
+        write(file, owner, StorageDurability.NONE, "discarded");
+        assertFalse(file.exists());
+        assertEquals(Collections.<String>emptyList(), Arrays.asList(dir.list()));
+    }
+
+    private static void write(File file, FlowExecutionOwner owner, StorageDurability durability, String value) throws Exception {
+        RiverWriter w = new RiverWriter(file, owner, durability);
+        try {
+            w.writeObject(value);
+            w.writeObject(owner);
+        } finally {
+            w.close();
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.support.storage.SegmentedFlowNodeStorageTest.TestNode;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class FlowNodeCacheTest {
+
+    private FlowNodeCache cache;
+    private FlowExecution exec;
+    private FlowNodeCache.Scope scope;
+
+    @Before public void createCache() {
+        cache = new FlowNodeCache(1000, 0, 0);
+        exec = Mockito.mock(FlowExecution.class);
+        scope = cache.scope(null);
+    }
+
+    @Test public void absentIdsRacingWithPut() {
+        long generation = cache.generation(scope);
+        cache.absent(scope, "1", generation);
+        assertTrue(cache.isAbsent(scope, "1"));
+        cache.put(scope, new TestNode(exec, "1"));
+        assertFalse(cache.isAbsent(scope, "1"));
+
+        generation = cache.generation(scope); // a reader misses node 2
+        cache.put(scope, new TestNode(exec, "2")); // then it is stored, before the reader records the miss
+        cache.invalidate(scope); // and evicted
+        cache.absent(scope, "2", generation);
+        assertFalse(cache.isAbsent(scope, "2"));
+    }
+
+}
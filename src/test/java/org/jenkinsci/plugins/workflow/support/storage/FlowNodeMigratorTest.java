@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.model.Action;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.support.actions.PauseAction;
+import org.jenkinsci.plugins.workflow.support.storage.SegmentedFlowNodeStorageTest.TestNode;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+public class FlowNodeMigratorTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test public void findsBuildsOfNestedJobsOnly() throws Exception {
+        File jobs = tmp.newFolder("jobs");
+        File job = new File(jobs, "folder/jobs/workflow"); // a job named like a flow node directory, in a folder
+        assertTrue(new File(job, "config.xml").getParentFile().mkdirs());
+        assertTrue(new File(job, "config.xml").createNewFile());
+        File completed = build(new File(job, "builds/1"));
+        File running = build(new File(jobs, "folder/jobs/other/builds/2"));
+        assertTrue(new File(running.getParentFile(), FlowNodeMigrator.PROGRAM_FILE_NAME).createNewFile());
+        assertTrue(new File(job, "builds/1/archive/workflow").mkdirs());
+        assertEquals(new HashSet<File>(Arrays.asList(completed, running)), new HashSet<File>(FlowNodeMigrator.find(jobs)));
+
+        FlowNodeMigrator migrator = new FlowNodeMigrator(2, 0, 0);
+        migrator.migrate(FlowNodeMigrator.find(jobs));
+        assertEquals(1, migrator.getMigratedCount());
+        assertEquals(1, migrator.getSkippedCount());
+        assertEquals(0, migrator.getFailedCount());
+        assertEquals(2, migrator.getNodeCount());
+        assertEquals(migrator.getSourceActionCount(), migrator.getPackedActionCount());
+        assertTrue(new File(completed, PackedFlowNodeStorage.FILE_NAME).isFile());
+        assertFalse(new File(completed, "1.xml").exists());
+        assertFalse(new File(running, PackedFlowNodeStorage.FILE_NAME).exists());
+        assertTrue(new File(running, "1.xml").isFile());
+        assertTrue(new File(job, "config.xml").isFile());
+        assertFalse(new File(job, PackedFlowNodeStorage.FILE_NAME).exists());
+    }
+
+    /**
+     * Writes two nodes into the flow node directory of a build.
+     */
+    private static File build(File buildDir) throws Exception {
+        File dir = new File(buildDir, "workflow");
+        FlowExecution exec = Mockito.mock(FlowExecution.class);
+        SimpleXStreamFlowNodeStorage storage = new SimpleXStreamFlowNodeStorage(exec, dir, StorageDurability.MAXIMUM);
+        FlowNode one = new TestNode(exec, "1");
+        FlowNode two = new TestNode(exec, "2", one);
+        storage.storeNode(one);
+        storage.storeNode(two);
+        storage.saveActions(two, Collections.<Action>singletonList(new PauseAction("migrated")));
+        return dir;
+    }
+
+}
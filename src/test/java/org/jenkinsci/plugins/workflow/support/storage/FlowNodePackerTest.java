@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.model.Action;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.support.actions.PauseAction;
+import org.jenkinsci.plugins.workflow.support.storage.SegmentedFlowNodeStorageTest.TestNode;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+public class FlowNodePackerTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+    private FlowExecution exec;
+
+    @Before public void createDir() throws Exception {
+        dir = tmp.newFolder();
+        exec = Mockito.mock(FlowExecution.class);
+    }
+
+    private SimpleXStreamFlowNodeStorage open() {
+        return new SimpleXStreamFlowNodeStorage(exec, dir, StorageDurability.MAXIMUM);
+    }
+
+    private File packFile() {
+        return new File(dir, PackedFlowNodeStorage.FILE_NAME);
+    }
+
+    @Test public void packAndRead() throws Exception {
+        SimpleXStreamFlowNodeStorage storage = open();
+        FlowNode one = new TestNode(exec, "1");
+        FlowNode two = new TestNode(exec, "2", one);
+        storage.storeNode(one);
+        storage.storeNode(two);
+        storage.saveActions(two, Collections.<Action>singletonList(new PauseAction("packed")));
+        assertEquals(2, FlowNodePacker.pack(dir));
+        assertFalse(new File(dir, "1.xml").exists());
+        PackedFlowNodeStorage pack = new PackedFlowNodeStorage(exec, packFile());
+        assertEquals(Arrays.asList("1", "2"), pack.getIds());
+
+        SimpleXStreamFlowNodeStorage reloaded = open();
+        Mockito.when(exec.getNode("1")).thenReturn(reloaded.getNode("1"));
+        FlowNode loaded = reloaded.getNode("2");
+        assertEquals("1", loaded.getParents().get(0).getId());
+        assertEquals("packed", ((PauseAction) reloaded.loadActions(loaded).get(0)).getCause());
+
+        reloaded.saveActions(loaded, Collections.<Action>singletonList(new PauseAction("updated")));
+        assertEquals("updated", ((PauseAction) reloaded.loadActions(loaded).get(0)).getCause());
+        assertEquals(1, FlowNodePacker.pack(dir));
+        assertEquals("updated", ((PauseAction) open().loadActions(loaded).get(0)).getCause());
+    }
+
+    @Test public void keepsNodeFilesWhichCannotBeReadCompletely() throws Exception {
+        SimpleXStreamFlowNodeStorage storage = open();
+        FlowNode one = new TestNode(exec, "1");
+        FlowNode two = new TestNode(exec, "2", one);
+        storage.storeNode(one);
+        storage.storeNode(two);
+        storage.saveActions(two, Collections.<Action>singletonList(new PauseAction("from an uninstalled plugin")));
+        File f = new File(dir, "2.xml");
+        String xml = FileUtils.readFileToString(f, "UTF-8").replace(PauseAction.class.getName(), "org.example.UninstalledAction");
+        FileUtils.writeStringToFile(f, xml, "UTF-8");
+        FlowNodePacker.Result result = FlowNodePacker.pack(dir, true);
+        assertEquals(1, result.getPackedCount());
+        assertEquals(1, result.getKeptCount());
+        assertEquals(result.getSourceActionCount(), result.getPackedActionCount());
+        assertFalse(new File(dir, "1.xml").exists());
+        assertEquals(xml, FileUtils.readFileToString(f, "UTF-8"));
+        assertEquals(Collections.singletonList("1"), new PackedFlowNodeStorage(exec, packFile()).getIds());
+    }
+
+    @Test public void repacksUnreadableActionsSavedAgain() throws Exception {
+        FlowNode one = new TestNode(exec, "1");
+        byte[] data = {(byte) 0x7f, 1, 2, 3};
+        PackedFlowNodeStorage.Writer writer = new PackedFlowNodeStorage.Writer(packFile(), BinaryRecordCodec.INSTANCE);
+        try {
+            writer.add(one, Collections.<Action>singletonList(new UnreadableAction(BinaryRecordCodec.INSTANCE, "org.example.UninstalledAction", data)));
+        } finally {
+            writer.close();
+        }
+        SimpleXStreamFlowNodeStorage storage = open();
+        List<Action> actions = new ArrayList<Action>(storage.loadActions(storage.getNode("1")));
+        assertEquals(1, actions.size());
+        actions.add(new PauseAction("added"));
+        storage.saveActions(one, actions); // now written to 1.xml through XStream
+        FlowNodePacker.Result result = FlowNodePacker.pack(dir, true);
+        assertEquals(1, result.getPackedCount());
+        assertEquals(0, result.getKeptCount());
+        assertFalse(new File(dir, "1.xml").exists());
+        List<Action> reloaded = open().loadActions(one);
+        assertEquals(2, reloaded.size());
+        UnreadableAction unreadable = (UnreadableAction) reloaded.get(0);
+        assertEquals("org.example.UninstalledAction", unreadable.className);
+        assertEquals(BinaryRecordCodec.INSTANCE, unreadable.codec());
+        assertArrayEquals(data, unreadable.data);
+        assertEquals("added", ((PauseAction) reloaded.get(1)).getCause());
+    }
+
+}
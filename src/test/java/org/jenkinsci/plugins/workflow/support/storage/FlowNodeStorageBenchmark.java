@@ -0,0 +1,333 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import com.google.common.io.Files;
+import hudson.Util;
+import hudson.model.Action;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.workflow.actions.LabelAction;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.BlockEndNode;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.support.storage.SegmentedFlowNodeStorageTest.TestNode;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the hot paths of each {@link FlowNodeStorage} on synthetic graphs of various shapes and sizes.
+ * Run with {@code mvn -P benchmark test}; see {@link FlowNodeStorageBenchmarkRunner} for options.
+ *
+ * <p>
+ * Each benchmark operation handles one node: storing it into a storage being filled, saving its actions,
+ * or reading it back from a storage filled during setup. Reads with "Uncached" in their name empty the {@link FlowNodeCache} first.
+ * The space taken on disk by the storage filled for reads is printed at the start of each trial,
+ * and that taken by the storages written by {@link #storeNode} at the end of each iteration.
+ * To cover another engine, add it to {@link Engine}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FlowNodeStorageBenchmark {
+
+    public enum Engine {
+        SIMPLE {
+            @Override FlowNodeStorage create(FlowExecution exec, File dir) {
+                return new SimpleXStreamFlowNodeStorage(exec, dir);
+            }
+        },
+        SEGMENTED {
+            @Override FlowNodeStorage create(FlowExecution exec, File dir) {
+                return new SegmentedFlowNodeStorage(exec, dir);
+            }
+        },
+        KEY_VALUE {
+            @Override FlowNodeStorage create(FlowExecution exec, File dir) throws IOException {
+                return new KeyValueFlowNodeStorage(exec, new File(dir, KeyValueFlowNodeStorage.FILE_NAME), "1", null);
+            }
+            @Override void close(File dir) throws IOException {
+                KeyValueStore.evict(new File(dir, KeyValueFlowNodeStorage.FILE_NAME));
+            }
+        };
+
+        abstract FlowNodeStorage create(FlowExecution exec, File dir) throws IOException;
+
+        /**
+         * Releases anything kept open for a storage directory before it is deleted.
+         */
+        void close(File dir) throws IOException {}
+    }
+
+    public enum Shape {
+        /** One step after another. */
+        LINEAR,
+        /** A parallel block whose branches run interleaved, as they do in a real build. */
+        PARALLEL,
+        /** Blocks within blocks, several levels deep. */
+        NESTED
+    }
+
+    @Param({"SIMPLE", "SEGMENTED", "KEY_VALUE"})
+    public Engine engine;
+
+    @Param({"LINEAR", "PARALLEL", "NESTED"})
+    public Shape shape;
+
+    @Param({"1000", "100000"})
+    public int nodes;
+
+    private FlowExecution exec;
+    private List<FlowNode> graph;
+    private List<Action> actions;
+    private List<Action> otherActions;
+    private File root;
+    /** Filled during setup, for reads. */
+    private File readDir;
+    private FlowNodeStorage read;
+    /** Directories filled by {@link #storeNode} during the current iteration; the last one is being filled. */
+    private final List<File> writeDirs = new ArrayList<File>();
+    private FlowNodeStorage write;
+    private int generation;
+    private int writeCursor;
+    /** Nodes stored during the current iteration. */
+    private long written;
+    private int readCursor;
+    private int saves;
+
+    @Setup(Level.Trial) public void setUp() throws IOException {
+        exec = Mockito.mock(FlowExecution.class);
+        graph = graph(exec, shape, nodes);
+        actions = Collections.<Action>singletonList(new LabelAction("benchmark"));
+        otherActions = Arrays.<Action>asList(new LabelAction("benchmark"), new LabelAction("changed"));
+        root = Files.createTempDir();
+        readDir = new File(root, "read");
+        read = engine.create(exec, readDir);
+        for (FlowNode n : graph) {
+            read.storeNode(n);
+            read.saveActions(n, actions);
+        }
+        read.flush();
+        System.out.printf("%s stores %d %s nodes in %d bytes on disk, %d per node%n",
+                engine, nodes, shape, diskUsage(readDir), diskUsage(readDir) / nodes);
+    }
+
+    @TearDown(Level.Trial) public void tearDown() throws IOException {
+        engine.close(readDir);
+        Util.deleteRecursive(root);
+        FlowNodeCache.get().invalidateAll();
+    }
+
+    @Setup(Level.Iteration) public void setUpIteration() throws IOException {
+        written = 0;
+        startWriting();
+    }
+
+    /**
+     * Reports the space taken by what {@link #storeNode} wrote, then deletes it outside of the measurement.
+     */
+    @TearDown(Level.Iteration) public void tearDownIteration() throws IOException {
+        write.flush();
+        long bytes = 0;
+        for (File dir : writeDirs) {
+            engine.close(dir);
+            bytes += diskUsage(dir);
+            Util.deleteRecursive(dir);
+        }
+        if (written > 0) { // only during storeNode
+            System.out.printf("%s wrote %d %s nodes in %d bytes on disk, %d per node%n", engine, written, shape, bytes, bytes / written);
+        }
+        writeDirs.clear();
+        write = null;
+    }
+
+    private void startWriting() throws IOException {
+        File dir = new File(root, "write-" + ++generation);
+        writeDirs.add(dir);
+        write = engine.create(exec, dir);
+        writeCursor = 0;
+    }
+
+    /**
+     * Stores the next node of the graph, continuing in another fresh storage once the whole graph has been stored,
+     * as the next build would. Storages are only closed and deleted at the end of the iteration.
+     */
+    @Benchmark public void storeNode() throws IOException {
+        if (writeCursor == graph.size()) {
+            write.flush(); // as when the build completes
+            startWriting();
+        }
+        write.storeNode(graph.get(writeCursor++));
+        written++;
+    }
+
+    /**
+     * Saves changed actions of the next node; alternating between two lists keeps storage from skipping unchanged content.
+     */
+    @Benchmark public void saveActions() throws IOException {
+        read.saveActions(next(), (saves++ & 1) == 0 ? otherActions : actions);
+    }
+
+    @Benchmark public FlowNode getNode() throws IOException {
+        return read.getNode(next().getId());
+    }
+
+    @Benchmark public FlowNode getNodeUncached() throws IOException {
+        FlowNodeCache.get().invalidateAll();
+        return read.getNode(next().getId());
+    }
+
+    @Benchmark public List<Action> loadActions() throws IOException {
+        return read.loadActions(next());
+    }
+
+    @Benchmark public List<LabelAction> loadActionsOfType() throws IOException {
+        return read.loadActions(next(), LabelAction.class);
+    }
+
+    private FlowNode next() {
+        if (readCursor == graph.size()) {
+            readCursor = 0;
+        }
+        return graph.get(readCursor++);
+    }
+
+    private static long diskUsage(File f) {
+        File[] children = f.listFiles();
+        if (children == null) {
+            return f.length();
+        }
+        long size = 0;
+        for (File c : children) {
+            size += diskUsage(c);
+        }
+        return size;
+    }
+
+    /**
+     * Builds a graph of about the requested size with ids assigned in creation order, as executions do.
+     */
+    static List<FlowNode> graph(FlowExecution exec, Shape shape, int size) {
+        List<FlowNode> graph = new ArrayList<FlowNode>(size);
+        FlowNode head = add(graph, new TestNode(exec, "2"));
+        switch (shape) {
+        case LINEAR:
+            while (graph.size() < size) {
+                head = add(graph, new TestNode(exec, id(graph), head));
+            }
+            break;
+        case PARALLEL:
+            int width = Math.max(2, Math.min(100, size / 20));
+            TestStartNode parallel = add(graph, new TestStartNode(exec, id(graph), head));
+            List<TestStartNode> starts = new ArrayList<TestStartNode>(width);
+            List<FlowNode> tails = new ArrayList<FlowNode>(width);
+            for (int i = 0; i < width; i++) {
+                TestStartNode branch = add(graph, new TestStartNode(exec, id(graph), parallel));
+                starts.add(branch);
+                tails.add(branch);
+            }
+            for (int i = 0; graph.size() < size - width - 1; i = (i + 1) % width) {
+                tails.set(i, add(graph, new TestNode(exec, id(graph), tails.get(i))));
+            }
+            List<FlowNode> ends = new ArrayList<FlowNode>(width);
+            for (int i = 0; i < width; i++) {
+                ends.add(add(graph, new TestEndNode(exec, id(graph), starts.get(i), tails.get(i))));
+            }
+            add(graph, new TestEndNode(exec, id(graph), parallel, ends.toArray(new FlowNode[width])));
+            break;
+        case NESTED:
+            Deque<TestStartNode> open = new ArrayDeque<TestStartNode>();
+            for (int i = 0; graph.size() < size - open.size(); i++) {
+                if (open.size() < 10 && i % 3 == 0) {
+                    TestStartNode start = add(graph, new TestStartNode(exec, id(graph), head));
+                    open.push(start);
+                    head = start;
+                } else if (!open.isEmpty() && i % 5 == 0) {
+                    head = add(graph, new TestEndNode(exec, id(graph), open.pop(), head));
+                } else {
+                    head = add(graph, new TestNode(exec, id(graph), head));
+                }
+            }
+            while (!open.isEmpty()) {
+                head = add(graph, new TestEndNode(exec, id(graph), open.pop(), head));
+            }
+            break;
+        default:
+            throw new AssertionError(shape);
+        }
+        return graph;
+    }
+
+    private static <N extends FlowNode> N add(List<FlowNode> graph, N node) {
+        graph.add(node);
+        return node;
+    }
+
+    private static String id(List<FlowNode> graph) {
+        return Integer.toString(graph.size() + 2);
+    }
+
+    static final class TestStartNode extends BlockStartNode {
+        TestStartNode(FlowExecution exec, String id, FlowNode... parents) {
+            super(exec, id, parents);
+        }
+        @Override protected String getTypeDisplayName() {
+            return "start";
+        }
+    }
+
+    static final class TestEndNode extends BlockEndNode<TestStartNode> {
+        TestEndNode(FlowExecution exec, String id, TestStartNode start, FlowNode... parents) {
+            super(exec, id, start, parents);
+        }
+        @Override protected String getTypeDisplayName() {
+            return "end";
+        }
+    }
+
+}
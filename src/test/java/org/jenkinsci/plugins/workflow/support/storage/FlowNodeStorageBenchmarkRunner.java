@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import org.junit.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link FlowNodeStorageBenchmark} from the {@code benchmark} profile: {@code mvn -P benchmark test}.
+ * Not named like a test, so it is skipped by ordinary builds.
+ *
+ * <p>
+ * Throughput is reported per operation, allocation rate by the GC profiler ({@code gc.alloc.rate.norm} is bytes per operation),
+ * and on-disk size on standard output. Results are also written to {@code target/jmh-results.json}.
+ * System properties narrow or widen the matrix:
+ * <ul>
+ * <li>{@code benchmark.include}: regular expression of benchmark methods, such as {@code getNode.*}
+ * <li>{@code benchmark.engines}: comma-separated {@link FlowNodeStorageBenchmark.Engine} names
+ * <li>{@code benchmark.shapes}: comma-separated {@link FlowNodeStorageBenchmark.Shape} names
+ * <li>{@code benchmark.nodes}: comma-separated graph sizes, such as {@code 1000,100000,1000000}
+ * <li>{@code benchmark.warmupIterations}, {@code benchmark.measurementIterations}
+ * </ul>
+ */
+public class FlowNodeStorageBenchmarkRunner {
+
+    @Test public void run() throws Exception {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(FlowNodeStorageBenchmark.class.getName() + "." + System.getProperty("benchmark.include", ".*"))
+                .addProfiler(GCProfiler.class)
+                .result("target/jmh-results.json")
+                .resultFormat(ResultFormatType.JSON)
+                .shouldFailOnError(true);
+        param(options, "engine", "benchmark.engines");
+        param(options, "shape", "benchmark.shapes");
+        param(options, "nodes", "benchmark.nodes");
+        String warmup = System.getProperty("benchmark.warmupIterations");
+        if (warmup != null) {
+            options.warmupIterations(Integer.parseInt(warmup));
+        }
+        String measurement = System.getProperty("benchmark.measurementIterations");
+        if (measurement != null) {
+            options.measurementIterations(Integer.parseInt(measurement));
+        }
+        new Runner(options.build()).run();
+    }
+
+    private static void param(ChainedOptionsBuilder options, String name, String property) {
+        String values = System.getProperty(property);
+        if (values != null && !values.trim().isEmpty()) {
+            options.param(name, values.trim().split("\\s*,\\s*"));
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class FlowNodeStorageConfigurationTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void globalEngineRoundTrip() throws Exception {
+        FlowNodeStorageConfiguration config = FlowNodeStorageConfiguration.get();
+        assertNotNull(config);
+        assertNull(config.getEngine());
+        assertTrue(FlowNodeStorageEngine.forOwner(null) instanceof FlowNodeStorageEngine.SimpleXStream);
+        String segmented = r.jenkins.getDescriptorByType(FlowNodeStorageEngine.Segmented.DescriptorImpl.class).getId();
+        config.setEngine(segmented);
+        r.configRoundtrip();
+        assertEquals(segmented, FlowNodeStorageConfiguration.get().getEngine());
+        assertTrue(FlowNodeStorageEngine.forOwner(null) instanceof FlowNodeStorageEngine.Segmented);
+        config.setEngine("");
+        r.configRoundtrip();
+        assertNull(FlowNodeStorageConfiguration.get().getEngine());
+    }
+
+    @Test public void jobPropertyRoundTrip() throws Exception {
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        StorageDurabilityJobProperty property = new StorageDurabilityJobProperty(StorageDurability.PERFORMANCE);
+        String keyValue = r.jenkins.getDescriptorByType(FlowNodeStorageEngine.KeyValue.DescriptorImpl.class).getId();
+        property.setEngine(keyValue);
+        p.addProperty(property);
+        r.configRoundtrip(p);
+        StorageDurabilityJobProperty reloaded = p.getProperty(StorageDurabilityJobProperty.class);
+        assertNotNull(reloaded);
+        assertEquals(StorageDurability.PERFORMANCE, reloaded.getDurability());
+        assertEquals(keyValue, reloaded.getEngine());
+
+        p.removeProperty(StorageDurabilityJobProperty.class);
+        p.addProperty(new StorageDurabilityJobProperty(StorageDurability.MAXIMUM));
+        r.configRoundtrip(p);
+        assertNull("the default is not saved", p.getProperty(StorageDurabilityJobProperty.class));
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.model.Action;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.support.actions.PauseAction;
+import org.jenkinsci.plugins.workflow.support.storage.SegmentedFlowNodeStorageTest.TestNode;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+public class KeyValueFlowNodeStorageTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File file;
+    private FlowExecution exec;
+
+    @Before public void createFile() {
+        file = new File(tmp.getRoot(), KeyValueFlowNodeStorage.FILE_NAME);
+        exec = Mockito.mock(FlowExecution.class);
+    }
+
+    /** Opens the storage of one build in the shared file. */
+    private KeyValueFlowNodeStorage open(String build) throws Exception {
+        return new KeyValueFlowNodeStorage(exec, file, build, null);
+    }
+
+    @Test public void buildsShareOneFile() throws Exception {
+        KeyValueFlowNodeStorage first = open("1");
+        KeyValueFlowNodeStorage second = open("2");
+        FlowNode previous = null;
+        for (int i = 2; i <= 12; i++) {
+            FlowNode n = previous == null ? new TestNode(exec, String.valueOf(i)) : new TestNode(exec, String.valueOf(i), previous);
+            first.storeNode(n);
+            previous = n;
+        }
+        first.saveActions(previous, Collections.<Action>singletonList(new PauseAction("first")));
+        second.saveActions(new TestNode(exec, "2"), Collections.<Action>singletonList(new PauseAction("second")));
+        assertNull(open("2").getNode("2")); // not committed yet
+        first.flush();
+        second.flush();
+        KeyValueStore.evict(file);
+
+        KeyValueFlowNodeStorage reloaded = open("1");
+        assertTrue(reloaded.getRecoveryReport().isClean());
+        assertEquals(Arrays.asList("9", "10", "11"), Arrays.asList(reloaded.getNodes(9, 12).keySet().toArray()));
+        assertEquals("first", ((PauseAction) reloaded.loadActions(reloaded.getNode("12")).get(0)).getCause());
+        KeyValueFlowNodeStorage other = open("2");
+        assertEquals("second", ((PauseAction) other.loadActions(other.getNode("2"), PauseAction.class).get(0)).getCause());
+        assertNull(other.getNode("3"));
+        reloaded.delete();
+        assertNull(open("1").getNode("5"));
+        assertNotNull(open("2").getNode("2"));
+    }
+
+    @Test public void keepsUnreadableActions() throws Exception {
+        KeyValueFlowNodeStorage storage = open("1");
+        FlowNode n = new TestNode(exec, "2");
+        storage.storeNode(n);
+        byte[] data = {(byte) 0x7f, 1, 2, 3};
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        BinaryRecordCodec.writeVarInt(out, 1);
+        out.writeByte(BinaryRecordCodec.INSTANCE.getId());
+        out.writeUTF("org.example.UninstalledAction"); // as if from a plugin since removed
+        BinaryRecordCodec.writeVarInt(out, data.length);
+        out.write(data);
+        out.flush();
+        storage.flush();
+        KeyValueStore.open(file.getCanonicalFile()).commit(new KeyValueStore.Batch().put("1", "2", (byte) 2 /* actions */, baos.toByteArray()));
+        List<Action> actions = new ArrayList<Action>(storage.loadActions(n));
+        assertEquals(1, actions.size());
+        assertEquals(0, storage.loadActions(n, PauseAction.class).size());
+        actions.add(new PauseAction("added"));
+        storage.saveActions(n, actions);
+        storage.flush();
+        List<Action> reloaded = open("1").loadActions(n);
+        assertEquals(2, reloaded.size());
+        UnreadableAction unreadable = (UnreadableAction) reloaded.get(0);
+        assertEquals("org.example.UninstalledAction", unreadable.className);
+        assertArrayEquals(data, unreadable.data);
+        assertEquals("added", ((PauseAction) reloaded.get(1)).getCause());
+        KeyValueStore.evict(file);
+    }
+
+    @Test public void dropsIncompleteBatch() throws Exception {
+        KeyValueFlowNodeStorage storage = open("1");
+        storage.storeNode(new TestNode(exec, "2"));
+        storage.flush();
+        storage.storeNode(new TestNode(exec, "3"));
+        storage.flush();
+        KeyValueStore.evict(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+        KeyValueFlowNodeStorage reloaded = open("1");
+        assertNotNull(reloaded.getNode("2"));
+        assertNull(reloaded.getNode("3"));
+        assertFalse(reloaded.getRecoveryReport().isClean());
+        KeyValueStore.evict(file);
+    }
+
+    @Test public void compactsInBatches() throws Exception {
+        long threshold = KeyValueStore.COMPACT_THRESHOLD;
+        int batchSize = KeyValueStore.COMPACT_BATCH_SIZE;
+        KeyValueStore.COMPACT_THRESHOLD = 0;
+        KeyValueStore.COMPACT_BATCH_SIZE = 64;
+        try {
+            KeyValueFlowNodeStorage storage = open("1");
+            List<FlowNode> nodes = new ArrayList<FlowNode>();
+            for (int i = 2; i < 22; i++) {
+                FlowNode n = new TestNode(exec, Integer.toString(i));
+                storage.storeNode(n);
+                nodes.add(n);
+            }
+            for (int round = 0; round < 5; round++) {
+                for (FlowNode n : nodes) {
+                    storage.saveActions(n, Collections.<Action>singletonList(new PauseAction("round " + round)));
+                }
+                storage.flush();
+            }
+            KeyValueStore store = KeyValueStore.open(file.getCanonicalFile());
+            assertTrue(store.getFileSize() < 2 * store.getLiveBytes() + 4096);
+            store.close();
+            KeyValueFlowNodeStorage reloaded = open("1");
+            assertTrue(reloaded.getRecoveryReport().isClean());
+            for (FlowNode n : nodes) {
+                assertNotNull(reloaded.getNode(n.getId()));
+                assertEquals("round 4", ((PauseAction) reloaded.loadActions(n).get(0)).getCause());
+            }
+            KeyValueStore.evict(file);
+        } finally {
+            KeyValueStore.COMPACT_THRESHOLD = threshold;
+            KeyValueStore.COMPACT_BATCH_SIZE = batchSize;
+        }
+    }
+
+    @Test public void keepsCompactedCopyWhenReplaceFails() throws Exception {
+        long threshold = KeyValueStore.COMPACT_THRESHOLD;
+        KeyValueStore.COMPACT_THRESHOLD = 0;
+        try {
+            File compacted = KeyValueStore.compacted(file);
+            KeyValueFlowNodeStorage storage = open("1");
+            FlowNode n = new TestNode(exec, "2");
+            storage.storeNode(n);
+            storage.flush();
+            // The open store keeps reading the deleted file, but the move of its compacted copy fails.
+            assertTrue(file.delete());
+            File inTheWay = new File(file, "in-the-way");
+            assertTrue(inTheWay.mkdirs());
+            int round = 0;
+            while (!compacted.exists()) {
+                assertTrue("never compacted", round < 100);
+                storage.saveActions(n, Collections.<Action>singletonList(new PauseAction("round " + round++)));
+                storage.flush();
+            }
+            assertTrue(compacted.isFile());
+            assertTrue(inTheWay.delete());
+            assertTrue(file.delete());
+            KeyValueFlowNodeStorage reloaded = open("1");
+            assertEquals("round " + (round - 1), ((PauseAction) reloaded.loadActions(reloaded.getNode("2")).get(0)).getCause());
+            assertTrue(reloaded.getRecoveryReport().isClean());
+            assertTrue(file.isFile());
+            assertFalse(compacted.exists());
+            KeyValueStore.evict(file);
+        } finally {
+            KeyValueStore.COMPACT_THRESHOLD = threshold;
+        }
+    }
+
+}
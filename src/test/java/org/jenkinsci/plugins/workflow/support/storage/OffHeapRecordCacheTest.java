@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class OffHeapRecordCacheTest {
+
+    private static byte[] record(int value) {
+        byte[] record = new byte[10];
+        record[0] = (byte) value;
+        return record;
+    }
+
+    @Test public void ringWrapsAndReclaimsOldestSlab() {
+        Object owner = new Object();
+        OffHeapRecordCache cache = new OffHeapRecordCache(64, 32); // two slabs of two records each
+        cache.put(owner, "1", record(1));
+        cache.put(owner, "2", record(2));
+        assertEquals(32, cache.getAllocatedBytes());
+        cache.put(owner, "3", record(3));
+        cache.put(owner, "4", record(4));
+        assertEquals(64, cache.getAllocatedBytes());
+        assertEquals(4, cache.getSize());
+        assertArrayEquals(record(1), cache.get(owner, "1"));
+        cache.put(owner, "5", record(5)); // wraps around into the first slab
+        assertNull(cache.get(owner, "1"));
+        assertNull(cache.get(owner, "2"));
+        assertArrayEquals(record(3), cache.get(owner, "3"));
+        assertArrayEquals(record(5), cache.get(owner, "5"));
+        assertEquals(3, cache.getSize());
+        assertEquals(64, cache.getAllocatedBytes());
+    }
+
+    @Test public void newerRecordSurvivesReclaimOfOlderCopy() {
+        Object owner = new Object();
+        OffHeapRecordCache cache = new OffHeapRecordCache(64, 32);
+        cache.put(owner, "1", record(1));
+        cache.put(owner, "2", record(2));
+        cache.put(owner, "1", record(11)); // second slab
+        cache.put(owner, "3", record(3));
+        assertArrayEquals(record(11), cache.get(owner, "1"));
+        cache.put(owner, "4", record(4)); // reclaims the first slab, holding the stale copy of 1
+        assertArrayEquals(record(11), cache.get(owner, "1"));
+        assertNull(cache.get(owner, "2"));
+    }
+
+    @Test public void ignoresOversizedRecords() {
+        Object owner = new Object();
+        OffHeapRecordCache cache = new OffHeapRecordCache(64, 32);
+        cache.put(owner, "1", new byte[29]);
+        assertNull(cache.get(owner, "1"));
+        assertEquals(0, cache.getAllocatedBytes());
+    }
+
+    @Test public void invalidateOwner() {
+        Object owner = new Object();
+        Object other = new Object();
+        OffHeapRecordCache cache = new OffHeapRecordCache(64, 32);
+        cache.put(owner, "1", record(1));
+        cache.put(other, "1", record(2));
+        cache.invalidate(owner);
+        assertNull(cache.get(owner, "1"));
+        assertArrayEquals(record(2), cache.get(other, "1"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+}
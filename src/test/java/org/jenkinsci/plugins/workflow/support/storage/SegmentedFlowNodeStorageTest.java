@@ -0,0 +1,180 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.model.Action;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.jenkinsci.plugins.workflow.actions.LabelAction;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.support.actions.PauseAction;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+public class SegmentedFlowNodeStorageTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test public void roundTrip() throws Exception {
+        File dir = tmp.newFolder();
+        FlowExecution exec = Mockito.mock(FlowExecution.class);
+        SegmentedFlowNodeStorage storage = new SegmentedFlowNodeStorage(exec, dir);
+        FlowNode one = new TestNode(exec, "1");
+        FlowNode two = new TestNode(exec, "2", one);
+        storage.storeNode(one);
+        storage.storeNode(two);
+        assertEquals(Collections.emptyList(), storage.loadActions(two));
+        storage.saveActions(two, Collections.<Action>singletonList(new PauseAction("first")));
+        storage.saveActions(two, Collections.<Action>singletonList(new PauseAction("second")));
+        assertNull(storage.getNode("3"));
+        storage.flush();
+
+        SegmentedFlowNodeStorage reloaded = new SegmentedFlowNodeStorage(exec, dir);
+        FlowNodeStructure structure = reloaded.getStructure("2");
+        assertNotNull(structure);
+        assertEquals(Collections.singletonList("1"), structure.getParentIds());
+        assertEquals(TestNode.class.getName(), structure.getNodeClass());
+        assertNull(structure.getStartId());
+        Mockito.when(exec.getNode("1")).thenReturn(reloaded.getNode("1"));
+        FlowNode loaded = reloaded.getNode("2");
+        assertNotNull(loaded);
+        assertEquals("2", loaded.getId());
+        assertEquals(1, loaded.getParents().size());
+        assertEquals("1", loaded.getParents().get(0).getId());
+        List<Action> actions = reloaded.loadActions(loaded);
+        assertEquals(1, actions.size());
+        assertEquals("second", ((PauseAction) actions.get(0)).getCause());
+        assertSame("strings are shared", ((PauseAction) actions.get(0)).getCause(), ((PauseAction) reloaded.loadActions(loaded).get(0)).getCause());
+        assertEquals(1, reloaded.loadActions(loaded, PauseAction.class).size());
+        assertEquals(0, reloaded.loadActions(loaded, LabelAction.class).size());
+        assertNull(reloaded.getNode("3"));
+        assertTrue(storage.getStatistics().getWriteCount() >= 4);
+        assertTrue(reloaded.getStatistics().getBytesRead() > 0);
+        assertTrue(StorageStatistics.total().getWriteCount() >= storage.getStatistics().getWriteCount());
+    }
+
+    @Test public void appendsActionDeltas() throws Exception {
+        File dir = tmp.newFolder();
+        FlowExecution exec = Mockito.mock(FlowExecution.class);
+        SegmentedFlowNodeStorage storage = new SegmentedFlowNodeStorage(exec, dir);
+        FlowNode one = new TestNode(exec, "1");
+        storage.storeNode(one);
+        List<Action> actions = new ArrayList<Action>();
+        for (int i = 0; i < SegmentedFlowNodeStorage.DELTA_THRESHOLD * 2; i++) {
+            actions.add(new PauseAction("pause " + i));
+            storage.saveActions(one, actions);
+        }
+        actions.remove(3);
+        actions.set(5, new PauseAction("replaced"));
+        storage.saveActions(one, actions);
+        long size = storage.segmentFile(0).length();
+        storage.saveActions(one, actions);
+        assertEquals("unchanged actions are not written again", size, storage.segmentFile(0).length());
+        List<Action> loaded = new SegmentedFlowNodeStorage(exec, dir).loadActions(one);
+        assertEquals(actions.size(), loaded.size());
+        for (int i = 0; i < actions.size(); i++) {
+            assertEquals(((PauseAction) actions.get(i)).getCause(), ((PauseAction) loaded.get(i)).getCause());
+        }
+    }
+
+    @Test public void rollsOverSegments() throws Exception {
+        long max = SegmentedFlowNodeStorage.MAX_SEGMENT_SIZE;
+        SegmentedFlowNodeStorage.MAX_SEGMENT_SIZE = 1024;
+        try {
+            File dir = tmp.newFolder();
+            FlowExecution exec = Mockito.mock(FlowExecution.class);
+            SegmentedFlowNodeStorage storage = new SegmentedFlowNodeStorage(exec, dir);
+            FlowNode previous = null;
+            for (int i = 1; i <= 100; i++) {
+                FlowNode n = previous == null ? new TestNode(exec, String.valueOf(i)) : new TestNode(exec, String.valueOf(i), previous);
+                storage.storeNode(n);
+                previous = n;
+            }
+            assertTrue(storage.segmentFile(1).isFile());
+            SegmentedFlowNodeStorage reloaded = new SegmentedFlowNodeStorage(exec, dir);
+            for (int i = 1; i <= 100; i++) {
+                assertEquals(String.valueOf(i), reloaded.getNode(String.valueOf(i)).getId());
+            }
+        } finally {
+            SegmentedFlowNodeStorage.MAX_SEGMENT_SIZE = max;
+        }
+    }
+
+    @Test public void readsRecordsOfOtherCodecs() throws Exception {
+        File dir = tmp.newFolder();
+        FlowExecution exec = Mockito.mock(FlowExecution.class);
+        SegmentedFlowNodeStorage storage = new SegmentedFlowNodeStorage(exec, dir, XStreamRecordCodec.INSTANCE);
+        FlowNode one = new TestNode(exec, "1");
+        storage.storeNode(one);
+        storage.saveActions(one, Collections.<Action>singletonList(new PauseAction("xml")));
+        SegmentedFlowNodeStorage reloaded = new SegmentedFlowNodeStorage(exec, dir, BinaryRecordCodec.INSTANCE);
+        FlowNode loaded = reloaded.getNode("1");
+        assertEquals("xml", ((PauseAction) reloaded.loadActions(loaded).get(0)).getCause());
+        reloaded.saveActions(loaded, Collections.<Action>singletonList(new PauseAction("binary")));
+        assertEquals("binary", ((PauseAction) new SegmentedFlowNodeStorage(exec, dir, XStreamRecordCodec.INSTANCE).loadActions(loaded).get(0)).getCause());
+    }
+
+    @Test public void truncatesDamagedTail() throws Exception {
+        File dir = tmp.newFolder();
+        FlowExecution exec = Mockito.mock(FlowExecution.class);
+        SegmentedFlowNodeStorage storage = new SegmentedFlowNodeStorage(exec, dir);
+        storage.storeNode(new TestNode(exec, "1"));
+        File segment = storage.segmentFile(0);
+        long intact = segment.length();
+        storage.storeNode(new TestNode(exec, "2"));
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.setLength(segment.length() - 3); // crash in the middle of an append
+        } finally {
+            raf.close();
+        }
+        SegmentedFlowNodeStorage reloaded = new SegmentedFlowNodeStorage(exec, dir);
+        assertEquals("1", reloaded.getNode("1").getId());
+        assertNull(reloaded.getNode("2"));
+        RecoveryReport report = reloaded.getRecoveryReport();
+        assertNotNull(report);
+        assertFalse(report.isClean());
+        assertEquals(intact, segment.length());
+        reloaded.storeNode(new TestNode(exec, "2"));
+        assertEquals("2", new SegmentedFlowNodeStorage(exec, dir).getNode("2").getId());
+    }
+
+    static final class TestNode extends FlowNode {
+        TestNode(FlowExecution exec, String id, FlowNode... parents) {
+            super(exec, id, parents);
+        }
+        @Override protected String getTypeDisplayName() {
+            return "test";
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import hudson.model.Action;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.support.actions.PauseAction;
+import org.jenkinsci.plugins.workflow.support.storage.SegmentedFlowNodeStorageTest.TestNode;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+public class SimpleXStreamFlowNodeStorageTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+    private FlowExecution exec;
+    private SimpleXStreamFlowNodeStorage storage;
+
+    @Before public void createStorage() throws Exception {
+        dir = tmp.newFolder();
+        exec = Mockito.mock(FlowExecution.class);
+        storage = reload();
+    }
+
+    /** Opens another storage of the same build, as after a restart. */
+    private SimpleXStreamFlowNodeStorage reload() {
+        return new SimpleXStreamFlowNodeStorage(exec, dir, StorageDurability.MAXIMUM);
+    }
+
+    @Test public void asyncWritesAreReadableAtOnce() throws Exception {
+        FlowNode one = new TestNode(exec, "1");
+        ListenableFuture<Void> stored = storage.storeNodeAsync(one);
+        ListenableFuture<Void> saved = storage.saveActionsAsync(one, Collections.<Action>singletonList(new PauseAction("async")));
+        ListenableFuture<Void> again = storage.storeNodeAsync(one); // must not replace the pending actions
+        assertSame(one, storage.getNode("1"));
+        assertEquals("async", ((PauseAction) storage.loadActions(one).get(0)).getCause());
+        stored.get(1, TimeUnit.MINUTES);
+        saved.get(1, TimeUnit.MINUTES);
+        again.get(1, TimeUnit.MINUTES);
+        assertTrue(new File(dir, "1.xml").isFile());
+
+        SimpleXStreamFlowNodeStorage reloaded = reload();
+        FlowNode loaded = reloaded.getNode("1");
+        assertNotNull(loaded);
+        reloaded.storeNodeAsync(loaded).get(1, TimeUnit.MINUTES);
+        List<Action> actions = reloaded.loadActions(loaded);
+        assertEquals(1, actions.size());
+        assertEquals("async", ((PauseAction) actions.get(0)).getCause());
+    }
+
+    @Test public void asyncWritesOfOneNodeAreOrdered() throws Exception {
+        FlowNode one = new TestNode(exec, "1");
+        storage.storeNodeAsync(one);
+        ListenableFuture<Void> last = null;
+        for (int i = 0; i < 50; i++) {
+            last = storage.saveActionsAsync(one, Collections.<Action>singletonList(new PauseAction("cause " + i)));
+        }
+        assertNotNull(last);
+        last.get(1, TimeUnit.MINUTES);
+        assertEquals("cause 49", ((PauseAction) reload().loadActions(one).get(0)).getCause());
+    }
+
+    @Test public void deferredWritesAreReadableUntilFlushed() throws Exception {
+        SimpleXStreamFlowNodeStorage writeBehind = new SimpleXStreamFlowNodeStorage(exec, dir, true);
+        FlowNode one = new TestNode(exec, "1");
+        long delay = SimpleXStreamFlowNodeStorage.WRITE_BEHIND_DELAY;
+        SimpleXStreamFlowNodeStorage.WRITE_BEHIND_DELAY = TimeUnit.MINUTES.toMillis(1); // so that only flush writes
+        try {
+            writeBehind.storeNode(one);
+            writeBehind.saveActions(one, Collections.<Action>singletonList(new PauseAction("deferred")));
+            assertFalse(new File(dir, "1.xml").exists());
+            assertSame(one, writeBehind.getNode("1"));
+            assertEquals("deferred", ((PauseAction) writeBehind.loadActions(one).get(0)).getCause());
+            writeBehind.flush();
+        } finally {
+            SimpleXStreamFlowNodeStorage.WRITE_BEHIND_DELAY = delay;
+        }
+        assertTrue(new File(dir, "1.xml").isFile());
+        SimpleXStreamFlowNodeStorage reloaded = reload();
+        assertEquals("deferred", ((PauseAction) reloaded.loadActions(reloaded.getNode("1")).get(0)).getCause());
+    }
+
+    @Test public void unchangedActionsAreNotWrittenAgain() throws Exception {
+        FlowNode one = new TestNode(exec, "1");
+        storage.storeNode(one);
+        storage.saveActions(one, Collections.<Action>singletonList(new PauseAction("same")));
+        File f = new File(dir, "1.xml");
+        assertTrue(f.setLastModified(0));
+        storage.saveActions(one, Collections.<Action>singletonList(new PauseAction("same")));
+        assertEquals(0, f.lastModified());
+        storage.saveActions(one, Collections.<Action>singletonList(new PauseAction("different")));
+        assertTrue(f.lastModified() > 0);
+    }
+
+    @Test public void recoverQuarantinesTruncatedFile() throws Exception {
+        FlowNode one = new TestNode(exec, "1");
+        storage.storeNode(one);
+        storage.storeNode(new TestNode(exec, "2", one));
+        assertTrue(new File(dir, SimpleXStreamFlowNodeStorage.IN_PROGRESS_MARKER).isFile());
+        File f = new File(dir, "2.xml");
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(raf.length() / 2);
+        } finally {
+            raf.close();
+        }
+        SimpleXStreamFlowNodeStorage reloaded = reload();
+        RecoveryReport report = reloaded.recover();
+        assertFalse(report.isClean());
+        assertEquals(1, report.getCheckedCount());
+        assertEquals(1, report.getProblems().size());
+        assertFalse(f.exists());
+        assertTrue(new File(dir, "2.xml.corrupt").isFile());
+        assertNotNull(reloaded.getNode("1"));
+        assertNull(reloaded.getNode("2"));
+    }
+
+    @Test public void absentIdsCanBeStoredLater() throws Exception {
+        assertNull(storage.getNode("1"));
+        assertNull(storage.getNode("1")); // now answered from the record of absent ids
+        FlowNode one = new TestNode(exec, "1");
+        storage.storeNode(one);
+        assertSame(one, storage.getNode("1"));
+        assertEquals(Collections.singletonMap("1", one), storage.getNodes(Collections.singletonList("1")));
+        assertNotNull(reload().getNode("1"));
+    }
+
+    @Test public void concurrentSavesAndReads() throws Exception {
+        final int threads = 8;
+        final int rounds = 100;
+        final List<FlowNode> nodes = new ArrayList<FlowNode>();
+        for (int i = 0; i < threads; i++) {
+            FlowNode n = new TestNode(exec, Integer.toString(i + 2));
+            storage.storeNode(n);
+            nodes.add(n);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < threads; i++) {
+                final FlowNode mine = nodes.get(i);
+                final FlowNode other = nodes.get((i + 1) % threads);
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override public Void call() throws Exception {
+                        for (int round = 0; round < rounds; round++) {
+                            storage.saveActions(mine, Collections.<Action>singletonList(new PauseAction("round " + round)));
+                            assertEquals("round " + round, ((PauseAction) storage.loadActions(mine).get(0)).getCause());
+                            assertSame(other, storage.getNode(other.getId()));
+                            List<Action> actions = storage.loadActions(other);
+                            assertTrue(actions.size() <= 1);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        SimpleXStreamFlowNodeStorage reloaded = reload();
+        for (FlowNode n : nodes) {
+            assertEquals("round " + (rounds - 1), ((PauseAction) reloaded.loadActions(n).get(0)).getCause());
+        }
+    }
+
+}
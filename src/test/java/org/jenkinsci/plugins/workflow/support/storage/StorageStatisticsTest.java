@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.model.Action;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.support.actions.PauseAction;
+import org.jenkinsci.plugins.workflow.support.storage.SegmentedFlowNodeStorageTest.TestNode;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+public class StorageStatisticsTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test public void countsStoresAndLoads() throws Exception {
+        File dir = tmp.newFolder();
+        FlowExecution exec = Mockito.mock(FlowExecution.class);
+        SimpleXStreamFlowNodeStorage storage = new SimpleXStreamFlowNodeStorage(exec, dir, StorageDurability.MAXIMUM);
+        long totalWrites = StorageStatistics.total().getWriteCount();
+        FlowNode one = new TestNode(exec, "1");
+        storage.storeNode(one);
+        storage.saveActions(one, Collections.<Action>singletonList(new PauseAction("counted")));
+        storage.storeNode(one); // unchanged, so not written again
+        StorageStatistics written = storage.getStatistics();
+        assertEquals(2, written.getWriteCount());
+        assertTrue(written.getBytesWritten() > 0);
+        assertEquals(0, written.getReadCount());
+        assertTrue(StorageStatistics.total().getWriteCount() >= totalWrites + 2);
+
+        SimpleXStreamFlowNodeStorage reloaded = new SimpleXStreamFlowNodeStorage(exec, dir, StorageDurability.MAXIMUM);
+        StorageStatistics read = reloaded.getStatistics();
+        long reads = read.getReadCount();
+        long bytes = read.getBytesRead();
+        assertEquals("counted", ((PauseAction) reloaded.loadActions(one).get(0)).getCause());
+        assertEquals(1, reloaded.loadActions(one, PauseAction.class).size());
+        assertEquals(reads + 2, read.getReadCount());
+        assertTrue(read.getBytesRead() > bytes);
+        assertEquals(0, read.getWriteCount());
+        long hits = read.getCacheHitCount();
+        long misses = read.getCacheMissCount();
+        assertNotNull(reloaded.getNode("1"));
+        assertNotNull(reloaded.getNode("1"));
+        assertEquals(misses + 1, read.getCacheMissCount());
+        assertEquals(hits + 1, read.getCacheHitCount());
+    }
+
+    @Test public void listsExecutionsByIdentity() throws Exception {
+        File dir = tmp.newFolder();
+        FlowExecution exec = Mockito.mock(FlowExecution.class);
+        SimpleXStreamFlowNodeStorage first = new SimpleXStreamFlowNodeStorage(exec, dir, StorageDurability.MAXIMUM);
+        SimpleXStreamFlowNodeStorage second = new SimpleXStreamFlowNodeStorage(exec, dir, StorageDurability.MAXIMUM);
+        assertEquals(first.toString(), second.toString());
+        StorageStatistics a = first.getStatistics();
+        StorageStatistics b = second.getStatistics();
+        assertNotSame(a, b);
+        assertSame(a, first.getStatistics());
+        assertTrue(StorageStatistics.executions().contains(a));
+        assertTrue(StorageStatistics.executions().contains(b));
+    }
+
+    @Test public void histogram() {
+        StorageStatistics.Histogram h = new StorageStatistics.Histogram();
+        assertEquals(0, h.percentile(0.5));
+        assertEquals(0.0, h.mean(), 0.0);
+        h.add(500); // under 1µs
+        h.add(TimeUnit.MICROSECONDS.toNanos(3));
+        h.add(TimeUnit.MILLISECONDS.toNanos(1));
+        assertEquals(3, h.count());
+        assertEquals(1003.0 / 3, h.mean(), 0.001);
+        assertEquals(4, h.percentile(0.5));
+        assertEquals(1024, h.percentile(0.99));
+        h.add(-1); // clock going backwards counts as zero
+        assertEquals(1, h.percentile(0.25));
+        JSONObject o = h.toJSON();
+        assertEquals(4, o.getLong("count"));
+        assertEquals(1024, o.getLong("p99Micros"));
+        assertEquals(3, o.getJSONArray("buckets").size());
+        assertEquals(2, o.getJSONArray("buckets").getJSONObject(0).getLong("count"));
+        assertEquals(1, o.getJSONArray("buckets").getJSONObject(0).getLong("lessThanMicros"));
+    }
+
+    @Test public void json() throws Exception {
+        SimpleXStreamFlowNodeStorage storage = new SimpleXStreamFlowNodeStorage(Mockito.mock(FlowExecution.class), tmp.newFolder(), StorageDurability.MAXIMUM);
+        StorageStatistics s = storage.getStatistics();
+        s.written(TimeUnit.MICROSECONDS.toNanos(10), 100);
+        s.read(TimeUnit.MICROSECONDS.toNanos(2), 40);
+        s.cache(true);
+        s.cache(false);
+        JSONObject o = s.toJSON();
+        assertEquals(storage.toString(), o.getString("name"));
+        assertEquals(1, o.getLong("writes"));
+        assertEquals(1, o.getLong("reads"));
+        assertEquals(100, o.getLong("bytesWritten"));
+        assertEquals(40, o.getLong("bytesRead"));
+        assertEquals(1, o.getLong("cacheHits"));
+        assertEquals(1, o.getLong("cacheMisses"));
+        assertEquals(0.5, o.getDouble("cacheHitRatio"), 0.0);
+        assertEquals(16, o.getJSONObject("writeLatency").getLong("p50Micros"));
+        assertEquals(1, o.getJSONObject("readLatency").getJSONArray("buckets").size());
+    }
+
+    @Test public void mbean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName on = new ObjectName(StorageStatistics.OBJECT_NAME);
+        StorageStatistics.registerMBean();
+        try {
+            StorageStatistics.registerMBean(); // as when Jenkins restarts within one JVM
+            assertTrue(server.isRegistered(on));
+            new SimpleXStreamFlowNodeStorage(Mockito.mock(FlowExecution.class), tmp.newFolder(), StorageDurability.MAXIMUM).getStatistics().written(1000, 10);
+            assertEquals("total", server.getAttribute(on, "Name"));
+            assertEquals(StorageStatistics.total().getWriteCount(), server.getAttribute(on, "WriteCount"));
+            assertEquals(StorageStatistics.total().getBytesWritten(), server.getAttribute(on, "BytesWritten"));
+        } finally {
+            StorageStatistics.unregisterMBean();
+        }
+        assertFalse(server.isRegistered(on));
+    }
+
+}